@@ -0,0 +1,207 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google_voltpatches.common.base.Preconditions;
+
+/**
+ * Bounds the number of end point write queues that may be committing at
+ * the same time, and adjusts that bound between a minimum and a maximum
+ * with an additive increase, multiplicative decrease controller. At each
+ * adjustment interval the controller compares the average commit latency
+ * seen in that interval to a slowly drifting baseline: when commits got
+ * markedly slower, or some failed, the bound is cut by a quarter, so that
+ * a struggling metastore is not pressed any further, and when they did not
+ * while end point queues are waiting for a writer, the bound is raised by
+ * one.
+ */
+class AdaptiveConcurrency implements Executor {
+    private final static HiveExportLogger LOG = new HiveExportLogger();
+
+    final static int MIN_WRITERS = Integer.getInteger("HIVE_MIN_CONCURRENT_WRITERS", 1);
+    final static int MAX_WRITERS = Integer.getInteger("HIVE_MAX_CONCURRENT_WRITERS",
+            ElasticExecutors.ENABLED ? 256 : Math.max(HiveSink.HIVE_CONCURRENT_WRITERS, 16));
+    final static int ADJUST_INTERVAL_MS = Integer.getInteger("HIVE_WRITERS_ADJUST_INTERVAL_MS", 1000);
+    final static int LATENCY_TOLERANCE_PCT = Integer.getInteger("HIVE_WRITERS_LATENCY_TOLERANCE_PCT", 200);
+
+    private final ExecutorService m_executor;
+    private final int m_minLimit;
+    private final int m_maxLimit;
+    private final long m_adjustIntervalNanos;
+    private final Queue<Runnable> m_ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger m_queued = new AtomicInteger(0);
+    private final AtomicInteger m_running = new AtomicInteger(0);
+    private volatile int m_limit;
+
+    // adjustment window, guarded by this
+    private long m_windowStart = System.nanoTime();
+    private int m_commits = 0;
+    private int m_failures = 0;
+    private long m_latencySum = 0L;
+    private long m_baseline = 0L;
+    private volatile long m_lastLatency = 0L;
+
+    AdaptiveConcurrency(ExecutorService executor, int initialLimit, int minLimit, int maxLimit, long adjustIntervalMs) {
+        Preconditions.checkArgument(minLimit > 0, "min concurrent writers must be positive");
+        Preconditions.checkArgument(maxLimit >= minLimit, "max concurrent writers is less than min");
+        m_executor = executor;
+        m_minLimit = minLimit;
+        m_maxLimit = maxLimit;
+        m_limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        m_adjustIntervalNanos = TimeUnit.MILLISECONDS.toNanos(adjustIntervalMs);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (m_executor.isShutdown()) {
+            throw new RejectedExecutionException("hive sink executor is shut down");
+        }
+        m_queued.incrementAndGet();
+        m_ready.add(task);
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (!m_ready.isEmpty()) {
+            int running = m_running.get();
+            if (running >= m_limit) {
+                return;
+            }
+            if (!m_running.compareAndSet(running, running + 1)) {
+                continue;
+            }
+            final Runnable task = m_ready.poll();
+            if (task == null) {
+                m_running.decrementAndGet();
+                continue;
+            }
+            m_queued.decrementAndGet();
+            try {
+                m_executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            m_running.decrementAndGet();
+                            dispatch();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // run it here instead, as dropping it would leave its pending writes incomplete
+                LOG.warn("Hive sink executor rejected a write task, running it on %s",
+                        e, Thread.currentThread().getName());
+                try {
+                    task.run();
+                } finally {
+                    m_running.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports the outcome of an end point commit to the controller
+     */
+    void completed(long latencyNanos, boolean failed) {
+        boolean raised = false;
+        synchronized (this) {
+            m_lastLatency = latencyNanos;
+            m_commits += 1;
+            m_latencySum += latencyNanos;
+            if (failed) m_failures += 1;
+
+            long now = System.nanoTime();
+            if (now - m_windowStart < m_adjustIntervalNanos) {
+                return;
+            }
+            long average = m_latencySum / m_commits;
+            if (m_baseline == 0L || average < m_baseline) {
+                m_baseline = average;
+            } else {
+                // drift up, so that a lasting change in latency becomes the new norm
+                m_baseline += (average - m_baseline) >> 4;
+            }
+            int limit = m_limit;
+            if (m_failures > 0 || average * 100 > m_baseline * LATENCY_TOLERANCE_PCT) {
+                limit = Math.max(m_minLimit, limit - Math.max(1, limit >> 2));
+            } else if (m_queued.get() > 0) {
+                limit = Math.min(m_maxLimit, limit + 1);
+            }
+            if (limit != m_limit) {
+                LOG.debug("Hive sink concurrent writers went from %d to %d (average commit %d ms, baseline %d ms, failures %d, waiting %d)",
+                        m_limit, limit, TimeUnit.NANOSECONDS.toMillis(average),
+                        TimeUnit.NANOSECONDS.toMillis(m_baseline), m_failures, m_queued.get());
+                raised = limit > m_limit;
+                m_limit = limit;
+            }
+            m_windowStart = now;
+            m_commits = 0;
+            m_failures = 0;
+            m_latencySum = 0L;
+        }
+        if (raised) {
+            dispatch();
+        }
+    }
+
+    /**
+     * @return the current bound on concurrently committing end points
+     */
+    public int getLimit() {
+        return m_limit;
+    }
+
+    public int getRunning() {
+        return m_running.get();
+    }
+
+    /**
+     * @return the number of end point write queues waiting for a writer
+     */
+    public int getQueueDepth() {
+        return m_queued.get();
+    }
+
+    public long getLastCommitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(m_lastLatency);
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveConcurrency [limit=" + getLimit() + ", min=" + m_minLimit + ", max=" + m_maxLimit
+                + ", running=" + getRunning() + ", waiting=" + getQueueDepth()
+                + ", lastCommitMillis=" + getLastCommitMillis() + "]";
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter. Each successive delay doubles, up to a
+ * maximum, and is drawn at random from the upper half of its range, so
+ * that the sink threads and decoders that failed together do not retry
+ * together.
+ */
+class Backoff {
+    final static int BASE_MS = Integer.getInteger("HIVE_BACKOFF_BASE_MS", 30);
+    final static int MAX_MS = Integer.getInteger("HIVE_BACKOFF_MAX_MS", 30_000);
+
+    private final long m_baseMs;
+    private final long m_maxMs;
+    private int m_attempts = 0;
+
+    Backoff() {
+        this(BASE_MS, MAX_MS);
+    }
+
+    Backoff(long baseMs, long maxMs) {
+        m_baseMs = baseMs;
+        m_maxMs = maxMs;
+    }
+
+    /**
+     * @return the delay in milliseconds before the next attempt
+     */
+    long next() {
+        long ceiling = Math.min(m_maxMs, m_baseMs << Math.min(m_attempts, 30));
+        ++m_attempts;
+        long half = ceiling >> 1;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+    void sleep() throws InterruptedException {
+        Thread.sleep(next());
+    }
+
+    void reset() {
+        m_attempts = 0;
+    }
+
+    int getAttempts() {
+        return m_attempts;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+/**
+ * Guards the writes to a Hive end point. After a given number of
+ * consecutive failed writes the circuit opens, and writes fail fast
+ * without reaching Hive for a backoff delay. Past that delay the circuit
+ * is half open: the next write is let through as a probe, and closes the
+ * circuit if it succeeds, or opens it again for a longer delay if it
+ * fails.
+ */
+class CircuitBreaker {
+    private final static HiveExportLogger LOG = new HiveExportLogger();
+
+    final static int FAILURE_THRESHOLD = Integer.getInteger("HIVE_BREAKER_FAILURES", 3);
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final Object m_endPoint;
+    private final Backoff m_backoff;
+    // guarded by this
+    private State m_state = State.CLOSED;
+    private int m_failures = 0;
+    private long m_openUntil = 0L;
+
+    CircuitBreaker(Object endPoint) {
+        m_endPoint = endPoint;
+        m_backoff = new Backoff(Backoff.BASE_MS * 10, Backoff.MAX_MS);
+    }
+
+    /**
+     * @return true if a write may go through, which for a half open circuit
+     *    makes it its probe
+     */
+    synchronized boolean allowRequest() {
+        if (m_state == State.OPEN && System.currentTimeMillis() >= m_openUntil) {
+            m_state = State.HALF_OPEN;
+            LOG.info("Probing Hive end point %s", m_endPoint);
+        }
+        return m_state != State.OPEN;
+    }
+
+    synchronized void succeeded() {
+        if (m_state != State.CLOSED) {
+            LOG.info("Hive end point %s recovered", m_endPoint);
+        }
+        m_state = State.CLOSED;
+        m_failures = 0;
+        m_backoff.reset();
+    }
+
+    synchronized void failed() {
+        ++m_failures;
+        if (m_state == State.HALF_OPEN || m_failures >= FAILURE_THRESHOLD) {
+            long delay = m_backoff.next();
+            m_openUntil = System.currentTimeMillis() + delay;
+            m_state = State.OPEN;
+            LOG.warn("Hive end point %s failed %d times in a row, failing its writes fast for %d ms",
+                    m_endPoint, m_failures, delay);
+        }
+    }
+
+    synchronized State getState() {
+        return m_state;
+    }
+
+    /**
+     * @return the milliseconds until an open circuit lets a probe through
+     */
+    synchronized long getRetryInMillis() {
+        return m_state == State.OPEN ? Math.max(0L, m_openUntil - System.currentTimeMillis()) : 0L;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker [endPoint=" + m_endPoint + ", state=" + m_state
+                + ", failures=" + m_failures + "]";
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+/**
+ * Static helpers that write delimited text fields straight into a
+ * {@link RecordBuffer}. Field separators and escape characters that occur in
+ * values are escaped with a backslash, and nulls are written as the Hive
+ * default null sequence <code>\N</code>
+ */
+public final class DelimitedEncoding {
+    public final static char SEPARATOR = ',';
+    public final static char ESCAPE = '\\';
+    final static byte [] NULL = { ESCAPE, 'N' };
+
+    private DelimitedEncoding() {
+    }
+
+    public static void appendNull(RecordBuffer to) {
+        to.append(NULL);
+    }
+
+    public static void appendEscaped(RecordBuffer to, CharSequence s) {
+        if (s == null) {
+            to.append(NULL);
+            return;
+        }
+        final int length = s.length();
+        for (int i = 0; i < length; ++i) {
+            char c = s.charAt(i);
+            if (c == SEPARATOR || c == ESCAPE) {
+                to.append(ESCAPE).append(c);
+            } else if (c < 0x80) {
+                to.append(c);
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < length && Character.isLowSurrogate(s.charAt(i+1))) {
+                to.appendCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+            } else {
+                to.appendUtf8(c);
+            }
+        }
+    }
+
+    /**
+     * Escapes a UTF-8 encoded string straight from its bytes
+     *
+     * @return false, leaving the buffer untouched, if the given bytes are not
+     *    well formed UTF-8, and thus must be decoded with replacements first
+     */
+    public static boolean appendEscaped(RecordBuffer to, byte [] utf8, int offset, int length) {
+        if (!RecordBuffer.isWellFormedUtf8(utf8, offset, length)) {
+            return false;
+        }
+        final int end = offset + length;
+        int from = offset;
+        for (int i = offset; i < end; ++i) {
+            if (utf8[i] == SEPARATOR || utf8[i] == ESCAPE) {
+                to.append(utf8, from, i - from).append(ESCAPE);
+                from = i;
+            }
+        }
+        to.append(utf8, from, end - from);
+        return true;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.MetaStoreUtils;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.serde.serdeConstants;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.SerDeUtils;
+import org.apache.hadoop.hive.serde2.lazy.LazySimpleSerDe;
+import org.apache.hive.hcatalog.streaming.DelimitedInputWriter;
+import org.apache.hive.hcatalog.streaming.HiveEndPoint;
+import org.apache.hive.hcatalog.streaming.SerializationError;
+import org.apache.hive.hcatalog.streaming.StreamingException;
+
+/**
+ * A {@link DelimitedInputWriter} for records encoded with the {@link DelimitedEncoding}.
+ * As records carry fields in table column order, separated by the serde separator,
+ * the writer never needs to split and reorder them. Its serde is set up to
+ * unescape backslash escaped characters.
+ */
+public class DelimitedRecordWriter extends DelimitedInputWriter {
+
+    public DelimitedRecordWriter(List<String> tableColumnNames, HiveEndPoint endPoint, HiveConf conf)
+            throws ClassNotFoundException, StreamingException {
+        super(tableColumnNames.toArray(new String[tableColumnNames.size()]),
+                String.valueOf(DelimitedEncoding.SEPARATOR), endPoint, conf,
+                DelimitedEncoding.SEPARATOR);
+    }
+
+    @Override
+    protected LazySimpleSerDe createSerde(Table tbl, HiveConf conf) throws SerializationError {
+        try {
+            Properties tableProps = MetaStoreUtils.getTableMetadata(tbl);
+            tableProps.setProperty(serdeConstants.FIELD_DELIM, String.valueOf(getSerdeSeparator()));
+            tableProps.setProperty(serdeConstants.ESCAPE_CHAR, String.valueOf(DelimitedEncoding.ESCAPE));
+            LazySimpleSerDe serde = new LazySimpleSerDe();
+            SerDeUtils.initializeSerDe(serde, conf, tableProps, null);
+            return serde;
+        } catch (SerDeException e) {
+            throw new SerializationError("Error initializing serde", e);
+        }
+    }
+}
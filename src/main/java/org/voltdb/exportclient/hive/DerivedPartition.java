@@ -0,0 +1,163 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google_voltpatches.common.base.Preconditions;
+
+/**
+ * A partition value derived from a TIMESTAMP column, by bucketing its values
+ * into calendar periods of the export timezone. It is specified in the
+ * partition columns configuration as <code>granularity(COLUMN)</code>, where
+ * granularity is one of <code>year</code>, <code>month</code>, <code>day</code>,
+ * or <code>hour</code>.
+ */
+public class DerivedPartition {
+
+    final static Pattern DERIVED_RE = Pattern.compile("(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)");
+
+    public enum Granularity {
+        YEAR("yyyy", Calendar.YEAR),
+        MONTH("yyyy-MM", Calendar.MONTH),
+        DAY("yyyy-MM-dd", Calendar.DAY_OF_MONTH),
+        HOUR("yyyy-MM-dd-HH", Calendar.HOUR_OF_DAY);
+
+        final String m_pattern;
+        final int m_field;
+
+        Granularity(String pattern, int field) {
+            m_pattern = pattern;
+            m_field = field;
+        }
+
+        void truncate(Calendar cal) {
+            switch (this) {
+            case YEAR:
+                cal.set(Calendar.MONTH, Calendar.JANUARY);
+                //$FALL-THROUGH$
+            case MONTH:
+                cal.set(Calendar.DAY_OF_MONTH, 1);
+                //$FALL-THROUGH$
+            case DAY:
+                cal.set(Calendar.HOUR_OF_DAY, 0);
+                //$FALL-THROUGH$
+            case HOUR:
+                cal.set(Calendar.MINUTE, 0);
+                cal.set(Calendar.SECOND, 0);
+                cal.set(Calendar.MILLISECOND, 0);
+            }
+        }
+    }
+
+    private final String m_column;
+    private final Granularity m_granularity;
+
+    private DerivedPartition(String column, Granularity granularity) {
+        m_column = column;
+        m_granularity = granularity;
+    }
+
+    /**
+     * @param expression a partition column specification
+     * @return the derived partition it specifies, or null if it is a plain column name
+     */
+    public static DerivedPartition parse(String expression) {
+        Matcher mtc = DERIVED_RE.matcher(Preconditions.checkNotNull(expression).trim());
+        if (!mtc.matches()) {
+            return null;
+        }
+        Granularity granularity;
+        try {
+            granularity = Granularity.valueOf(mtc.group(1).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "unknown partition granularity \"" + mtc.group(1) + "\" in " + expression, e);
+        }
+        return new DerivedPartition(mtc.group(2), granularity);
+    }
+
+    public String getColumn() {
+        return m_column;
+    }
+
+    public Granularity getGranularity() {
+        return m_granularity;
+    }
+
+    public Bucketer bucketer(TimeZone timeZone) {
+        return new Bucketer(timeZone);
+    }
+
+    @Override
+    public String toString() {
+        return m_granularity.name().toLowerCase() + "(" + m_column + ")";
+    }
+
+    /**
+     * Maps timestamps to the rendered value of their bucket. The bounds
+     * and value of the last bucket are kept, so that timestamps that fall
+     * in the same bucket as the previous one resolve without any date
+     * arithmetic. Not thread safe, as it is meant to be owned by a decoder.
+     */
+    public class Bucketer {
+        private final Calendar m_calendar;
+        private final SimpleDateFormat m_format;
+        private long m_start = Long.MAX_VALUE;
+        private long m_end = Long.MIN_VALUE;
+        private String m_value = null;
+
+        private Bucketer(TimeZone timeZone) {
+            m_calendar = new GregorianCalendar(timeZone);
+            m_format = new SimpleDateFormat(m_granularity.m_pattern);
+            m_format.setCalendar(m_calendar);
+        }
+
+        /**
+         * @param micros microseconds since the epoch
+         * @return the rendered bucket the given timestamp falls into
+         */
+        public String valueOf(long micros) {
+            if (micros >= m_start && micros < m_end) {
+                return m_value;
+            }
+            long millis = Math.floorDiv(micros, 1000L);
+            m_calendar.setTimeInMillis(millis);
+            m_granularity.truncate(m_calendar);
+            long start = m_calendar.getTimeInMillis();
+            m_value = m_format.format(m_calendar.getTime());
+            m_calendar.setTimeInMillis(start);
+            m_calendar.add(m_granularity.m_field, 1);
+            m_start = start * 1000L;
+            m_end = m_calendar.getTimeInMillis() * 1000L;
+            return m_value;
+        }
+    }
+}
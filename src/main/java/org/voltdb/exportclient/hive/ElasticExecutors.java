@@ -0,0 +1,245 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ManagedBlocker;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.voltcore.utils.CoreUtils;
+
+import com.google_voltpatches.common.util.concurrent.ListeningExecutorService;
+import com.google_voltpatches.common.util.concurrent.MoreExecutors;
+
+/**
+ * The opt in elastic threading mode. Instead of a dedicated thread per
+ * decoder, decoders get serial executors that borrow small stack threads
+ * from a shared pool only while they have work, and sink writers tell
+ * their pool when they block on Hive, so that it may lend another thread
+ * to the end points that are ready to write. Thread count thus follows
+ * the work actually in progress, rather than the number of decoders and
+ * the configured writers.
+ */
+final class ElasticExecutors {
+    private final static HiveExportLogger LOG = new HiveExportLogger();
+
+    final static boolean ENABLED = Boolean.getBoolean("HIVE_ELASTIC_THREADS");
+
+    private final static class Holder {
+        private final static ExecutorService pool = new ThreadPoolExecutor(
+                0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                CoreUtils.getThreadFactory("Hive Export Elastic Worker", CoreUtils.SMALL_STACK_SIZE));
+    }
+
+    private ElasticExecutors() {
+    }
+
+    /**
+     * @return an executor that runs its tasks one at a time, in submission
+     *    order, on threads borrowed from the shared elastic pool
+     */
+    static ListeningExecutorService serial(String name) {
+        return MoreExecutors.listeningDecorator(new SerialExecutor(name, Holder.pool));
+    }
+
+    /**
+     * Runs a task that blocks on Hive I/O. On a fork join pool thread, the
+     * pool is told about it, so that it may compensate for the blocked thread
+     */
+    static void runBlocking(final Runnable task) {
+        if (!ENABLED || !(Thread.currentThread() instanceof ForkJoinWorkerThread)) {
+            task.run();
+            return;
+        }
+        try {
+            ForkJoinPool.managedBlock(new ManagedBlocker() {
+                private boolean m_done = false;
+
+                @Override
+                public boolean block() {
+                    task.run();
+                    m_done = true;
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return m_done;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HiveExportException("Interrupted blocking write", e);
+        }
+    }
+
+    private final static class SerialExecutor extends AbstractExecutorService {
+        private final String m_name;
+        private final ExecutorService m_pool;
+        // guarded by this
+        private final Queue<Runnable> m_tasks = new ArrayDeque<>();
+        private boolean m_running = false;
+        private boolean m_shutdown = false;
+        // the pool thread this executor is borrowing, if any
+        private Thread m_thread = null;
+
+        private final Runnable m_drain = new Runnable() {
+            @Override
+            public void run() {
+                final Thread thread = Thread.currentThread();
+                final String poolName = thread.getName();
+                thread.setName(m_name);
+                boolean drained = false;
+                try {
+                    while (true) {
+                        Runnable task;
+                        synchronized (SerialExecutor.this) {
+                            task = m_tasks.poll();
+                            if (task == null) {
+                                m_running = false;
+                                SerialExecutor.this.notifyAll();
+                                drained = true;
+                                return;
+                            }
+                            m_thread = thread;
+                        }
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            LOG.error("Uncaught exception in %s", e, m_name);
+                        }
+                    }
+                } finally {
+                    synchronized (SerialExecutor.this) {
+                        m_thread = null;
+                    }
+                    // an interrupt from shutdownNow must not carry over to the next borrower
+                    Thread.interrupted();
+                    thread.setName(poolName);
+                    // a task threw an error: carry on with the remaining tasks on another pool thread
+                    if (!drained) resume();
+                }
+            }
+        };
+
+        private SerialExecutor(String name, ExecutorService pool) {
+            m_name = name;
+            m_pool = pool;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                if (m_shutdown) {
+                    throw new RejectedExecutionException(m_name + " is shut down");
+                }
+                m_tasks.add(task);
+                if (m_running) return;
+                m_running = true;
+            }
+            try {
+                m_pool.execute(m_drain);
+            } catch (RejectedExecutionException e) {
+                abandon();
+                throw e;
+            }
+        }
+
+        private void resume() {
+            synchronized (this) {
+                if (m_tasks.isEmpty()) {
+                    m_running = false;
+                    notifyAll();
+                    return;
+                }
+            }
+            try {
+                m_pool.execute(m_drain);
+            } catch (RejectedExecutionException e) {
+                LOG.error("Unable to resume %s, dropping its pending tasks", e, m_name);
+                abandon();
+            }
+        }
+
+        private synchronized void abandon() {
+            m_tasks.clear();
+            m_running = false;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            m_shutdown = true;
+            notifyAll();
+        }
+
+        /**
+         * Drops the pending tasks, and interrupts the running one, if any
+         */
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            m_shutdown = true;
+            List<Runnable> pending = new ArrayList<>(m_tasks);
+            m_tasks.clear();
+            if (m_thread != null) {
+                m_thread.interrupt();
+            }
+            notifyAll();
+            return pending;
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return m_shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return m_shutdown && !m_running && m_tasks.isEmpty();
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) return false;
+                wait(remaining);
+            }
+            return true;
+        }
+    }
+}
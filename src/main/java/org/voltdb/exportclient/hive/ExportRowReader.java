@@ -0,0 +1,266 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+import com.google_voltpatches.common.base.Preconditions;
+
+/**
+ * Walks a serialized export row in place, and gives access to its columns
+ * without materializing them as objects. Rows are laid out as a null flags bit
+ * mask, where the high order bit of the first byte is the flag for the first
+ * column, followed by the non null column values in little endian order:
+ * <ul>
+ * <li>TINYINT, SMALLINT, INTEGER, BIGINT, FLOAT, and TIMESTAMP as fixed size values</li>
+ * <li>VARCHAR and VARBINARY as an int length followed by as many bytes</li>
+ * <li>DECIMAL as a scale byte, a length byte, and the big endian unscaled value</li>
+ * </ul>
+ * A reader is reused for all the rows of a given source, and it is not thread safe.
+ */
+public class ExportRowReader {
+    private final VoltType [] m_types;
+    private final int [] m_offsets;
+    private final int [] m_lengths;
+    private final int m_nullFlagsLength;
+    private byte [] m_row = new byte[0];
+
+    public ExportRowReader(List<VoltType> columnTypes) {
+        Preconditions.checkArgument(
+                columnTypes != null && !columnTypes.isEmpty(),
+                "column types is null or empty"
+                );
+        Preconditions.checkArgument(
+                supports(columnTypes),
+                "column types %s include types that cannot be read in place", columnTypes
+                );
+        m_types = columnTypes.toArray(new VoltType[columnTypes.size()]);
+        m_offsets = new int[m_types.length];
+        m_lengths = new int[m_types.length];
+        m_nullFlagsLength = (m_types.length + 7) >> 3;
+        Arrays.fill(m_offsets, -1);
+    }
+
+    public static boolean supports(List<VoltType> columnTypes) {
+        for (VoltType type: columnTypes) {
+            if (sizeOf(type) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the serialized size of a column of the given type, -1 for
+     *    variable size columns, or 0 for types that cannot be read in place
+     */
+    private static int sizeOf(VoltType type) {
+        switch (type) {
+        case TINYINT:
+            return 1;
+        case SMALLINT:
+            return 2;
+        case INTEGER:
+            return 4;
+        case BIGINT:
+        case FLOAT:
+        case TIMESTAMP:
+            return 8;
+        case STRING:
+        case VARBINARY:
+        case DECIMAL:
+            return -1;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Locates all the column values in the given serialized row
+     *
+     * @param row a serialized export row
+     * @return this reader
+     * @throws IOException if the row is shorter than what its columns require
+     */
+    public ExportRowReader wrap(byte [] row) throws IOException {
+        int pos = m_nullFlagsLength;
+        if (row.length < pos) {
+            throw new IOException("export row is too short for its null flags");
+        }
+        for (int i = 0; i < m_types.length; ++i) {
+            if ((row[i >> 3] & (0x80 >>> (i & 7))) != 0) {
+                m_offsets[i] = -1;
+                m_lengths[i] = 0;
+                continue;
+            }
+            int length = sizeOf(m_types[i]);
+            if (m_types[i] == VoltType.DECIMAL) {
+                checkAvailable(row, pos, 2, i);
+                length = row[pos + 1] & 0xff;
+                pos += 2;
+            } else if (length < 0) {
+                checkAvailable(row, pos, 4, i);
+                length = getInt(row, pos);
+                pos += 4;
+            }
+            checkAvailable(row, pos, length, i);
+            m_offsets[i] = pos;
+            m_lengths[i] = length;
+            pos += length;
+        }
+        m_row = row;
+        return this;
+    }
+
+    private static void checkAvailable(byte [] row, int pos, int length, int column)
+            throws IOException {
+        if (length < 0 || pos + length > row.length) {
+            throw new IOException("export row is truncated at column " + column);
+        }
+    }
+
+    public int getColumnCount() {
+        return m_types.length;
+    }
+
+    /**
+     * @return the backing serialized row
+     */
+    public byte [] array() {
+        return m_row;
+    }
+
+    public boolean isNull(int column) {
+        return column < 0 || column >= m_types.length || m_offsets[column] < 0;
+    }
+
+    /**
+     * @return the position of the given non null column value in the
+     *    {@link #array() backing row}. For VARCHAR and VARBINARY columns
+     *    it is the position of their first byte
+     */
+    public int offset(int column) {
+        return m_offsets[column];
+    }
+
+    /**
+     * @return the number of bytes the given non null column value spans
+     */
+    public int length(int column) {
+        return m_lengths[column];
+    }
+
+    /**
+     * @return the given non null integral column value widened to a long
+     */
+    public long getLong(int column) {
+        final int pos = m_offsets[column];
+        switch (m_types[column]) {
+        case TINYINT:
+            return m_row[pos];
+        case SMALLINT:
+            return (short)((m_row[pos] & 0xff) | (m_row[pos + 1] << 8));
+        case INTEGER:
+            return getInt(m_row, pos);
+        default:
+            return getLong(m_row, pos);
+        }
+    }
+
+    public double getDouble(int column) {
+        return Double.longBitsToDouble(getLong(m_row, m_offsets[column]));
+    }
+
+    /**
+     * @return the given non null TIMESTAMP column value as microseconds since the epoch
+     */
+    public long getTimestamp(int column) {
+        return getLong(m_row, m_offsets[column]);
+    }
+
+    public BigDecimal getDecimal(int column) {
+        final int pos = m_offsets[column];
+        return new BigDecimal(
+                new BigInteger(Arrays.copyOfRange(m_row, pos, pos + m_lengths[column])),
+                m_row[pos - 2]
+                );
+    }
+
+    public String getString(int column) {
+        return new String(m_row, m_offsets[column], m_lengths[column], StandardCharsets.UTF_8);
+    }
+
+    public byte [] getBytes(int column) {
+        final int pos = m_offsets[column];
+        return Arrays.copyOfRange(m_row, pos, pos + m_lengths[column]);
+    }
+
+    /**
+     * @return the given column value boxed like the export decoder does, or
+     *    null if it is null or outside of the row
+     */
+    public Object getObject(int column) {
+        if (isNull(column)) return null;
+        switch (m_types[column]) {
+        case TINYINT:
+            return Byte.valueOf((byte)getLong(column));
+        case SMALLINT:
+            return Short.valueOf((short)getLong(column));
+        case INTEGER:
+            return Integer.valueOf((int)getLong(column));
+        case BIGINT:
+            return Long.valueOf(getLong(column));
+        case FLOAT:
+            return Double.valueOf(getDouble(column));
+        case TIMESTAMP:
+            return new TimestampType(getTimestamp(column));
+        case STRING:
+            return getString(column);
+        case VARBINARY:
+            return getBytes(column);
+        case DECIMAL:
+            return getDecimal(column);
+        default:
+            throw new IllegalStateException("unsupported column type " + m_types[column]);
+        }
+    }
+
+    private static int getInt(byte [] bytes, int pos) {
+        return (bytes[pos] & 0xff)
+                | (bytes[pos + 1] & 0xff) << 8
+                | (bytes[pos + 2] & 0xff) << 16
+                | (bytes[pos + 3]) << 24;
+    }
+
+    private static long getLong(byte [] bytes, int pos) {
+        return (getInt(bytes, pos) & 0xffffffffL) | (long)getInt(bytes, pos + 4) << 32;
+    }
+}
@@ -25,9 +25,11 @@
 package org.voltdb.exportclient.hive;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.hive.hcatalog.streaming.HiveEndPoint;
+import org.voltcore.utils.CoreUtils;
 
 import com.google_voltpatches.common.base.Optional;
 import com.google_voltpatches.common.base.Preconditions;
@@ -44,8 +46,19 @@ public class HiveConnectionPool {
 
     final static int POOL_SIZE = Integer.getInteger("HIVE_CONNECTION_POOL_SIZE", 64);
     final static int CONNECTION_TTL = Integer.getInteger("HIVE_CONNECTION_TTL", 30);
+    final static int HEARTBEAT_INTERVAL = Integer.getInteger("HIVE_HEARTBEAT_INTERVAL_SECONDS", 60);
+    final static int BATCH_IDLE_CLOSE = Integer.getInteger("HIVE_BATCH_IDLE_CLOSE_SECONDS", 600);
 
     private final LoadingCache<HiveEndPoint, HivePartitionStream> m_pool;
+    private final ScheduledExecutorService m_upkeep;
+    private volatile EvictionListener m_evictionListener = null;
+
+    /**
+     * Told about end points whose stream left the pool, other than by being replaced
+     */
+    interface EvictionListener {
+        void evicted(HiveEndPoint endPoint);
+    }
 
     HiveConnectionPool() {
         m_pool = CacheBuilder
@@ -54,8 +67,31 @@ public class HiveConnectionPool {
                     .expireAfterAccess(CONNECTION_TTL, TimeUnit.MINUTES)
                     .removalListener(connectionRemover)
                     .build(poolLoader);
+        m_upkeep = CoreUtils.getScheduledThreadPoolExecutor(
+                "Hive Export Stream Upkeep", 1, CoreUtils.SMALL_STACK_SIZE);
+        if (HEARTBEAT_INTERVAL > 0) {
+            m_upkeep.scheduleWithFixedDelay(
+                    upkeep, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+        }
     }
 
+    /*
+     * heartbeats the open transaction batches of the pooled streams that sat
+     * idle since the previous run, and closes those idle for long
+     */
+    private final Runnable upkeep = new Runnable() {
+        @Override
+        public void run() {
+            long heartbeatIdleMs = TimeUnit.SECONDS.toMillis(HEARTBEAT_INTERVAL);
+            long closeIdleMs = TimeUnit.SECONDS.toMillis(BATCH_IDLE_CLOSE);
+            for (HivePartitionStream stream: m_pool.asMap().values()) try {
+                stream.keepAlive(heartbeatIdleMs, closeIdleMs);
+            } catch (RuntimeException e) {
+                LOG.warn("Failed upkeep of %s", e, stream.getEndPoint());
+            }
+        }
+    };
+
     private final static CacheLoader<HiveEndPoint, HivePartitionStream> poolLoader =
             new CacheLoader<HiveEndPoint, HivePartitionStream>() {
         @Override
@@ -64,7 +100,7 @@ public class HiveConnectionPool {
         }
     };
 
-    private final static RemovalListener<HiveEndPoint, HivePartitionStream> connectionRemover =
+    private final RemovalListener<HiveEndPoint, HivePartitionStream> connectionRemover =
             new RemovalListener<HiveEndPoint, HivePartitionStream>() {
         @Override
         public void onRemoval(
@@ -80,9 +116,17 @@ public class HiveConnectionPool {
                       + " to the VoltDB process", POOL_SIZE);
             }
             notification.getValue().close();
+            EvictionListener listener = m_evictionListener;
+            if (listener != null && notification.getCause() != RemovalCause.REPLACED) {
+                listener.evicted(notification.getKey());
+            }
         }
     };
 
+    void setEvictionListener(EvictionListener listener) {
+        m_evictionListener = listener;
+    }
+
     public Optional<HivePartitionStream> getOptionally(HiveEndPoint key) {
         return Optional.fromNullable(
                 m_pool.getIfPresent(
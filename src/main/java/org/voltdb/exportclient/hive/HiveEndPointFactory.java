@@ -25,21 +25,84 @@
 package org.voltdb.exportclient.hive;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
+import org.apache.hadoop.hive.metastore.Warehouse;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.StorageDescriptor;
+import org.apache.hadoop.hive.metastore.api.Table;
 import org.apache.hive.hcatalog.streaming.HiveEndPoint;
+import org.apache.thrift.TException;
 
 import com.google_voltpatches.common.base.Preconditions;
 import com.google_voltpatches.common.base.Predicate;
+import com.google_voltpatches.common.cache.CacheBuilder;
 import com.google_voltpatches.common.collect.FluentIterable;
 import com.google_voltpatches.common.collect.ImmutableList;
 
 public class HiveEndPointFactory {
+    private final static HiveExportLogger LOG = new HiveExportLogger();
+
+    final static int ENDPOINT_CACHE_SIZE = Integer.getInteger("HIVE_ENDPOINT_CACHE_SIZE", 4096);
+    final static boolean KNOWN_PARTITIONS = !Boolean.getBoolean("HIVE_DISABLE_KNOWN_PARTITIONS");
+
     final String m_uri;
     final String m_db;
     final String m_table;
+    final RecordFormat m_recordFormat;
+    /*
+     * Canonical end points keyed by their partition values, of which the least
+     * recently used are evicted past the cache size. Lookups are done either
+     * with a {@link List} or with a {@link Lookup}, which hashes and compares
+     * equal to the list of its values
+     */
+    private final ConcurrentMap<Object, HiveEndPoint> m_endPoints = CacheBuilder
+                .newBuilder()
+                .maximumSize(ENDPOINT_CACHE_SIZE)
+                .<Object, HiveEndPoint>build()
+                .asMap();
+    /*
+     * the base configuration and table schema shared by all the streams of
+     * this factory end points, so that opening a stream neither parses the
+     * Hive configuration files nor fetches the schema anew. The schema is
+     * dropped on schema errors, and fetched again on next use
+     */
+    private volatile HiveConf m_baseConf = null;
+    private volatile Table m_tableSchema = null;
+    private volatile List<String> m_tableColumnNames = null;
+    /*
+     * the partition values of the target table partitions known to exist,
+     * loaded from the metastore on first use, so that connecting to them
+     * skips the partition creation step
+     */
+    private final Set<List<String>> m_knownPartitions =
+            Collections.newSetFromMap(new ConcurrentHashMap<List<String>, Boolean>());
+    private volatile boolean m_knownPartitionsLoaded = false;
+    /*
+     * backs off creating partitions ahead once it fails, so that a metastore
+     * outage is not met with a bulk partition creation attempt per block
+     */
+    private final Backoff m_createBackoff = new Backoff(Backoff.BASE_MS * 10, Backoff.MAX_MS);
+    private long m_createRetryAt = 0L; // guarded by m_createBackoff
 
     public HiveEndPointFactory(String uri, String db, String table) {
+        this(uri, db, table, RecordFormat.JSON);
+    }
+
+    public HiveEndPointFactory(String uri, String db, String table, RecordFormat recordFormat) {
         Preconditions.checkArgument(
                 uri != null && !uri.trim().isEmpty(),
                 "uri is null or empty"
@@ -60,11 +123,120 @@ public class HiveEndPointFactory {
         m_uri = uri.intern();
         m_db = db.intern();
         m_table = table.intern();
+        m_recordFormat = Preconditions.checkNotNull(recordFormat, "record format is null");
     }
 
     public HiveEndPoint endPointFor(List<String> partitionVals) {
+        Preconditions.checkArgument(partitionVals != null, "partition values must not be null");
+        HiveEndPoint endPoint = m_endPoints.get(partitionVals);
+        if (endPoint == null) {
+            endPoint = canonicalize(ImmutableList.copyOf(partitionVals));
+        }
+        return endPoint;
+    }
+
+    private HiveEndPoint canonicalize(ImmutableList<String> partitionVals) {
         checkPartitionValues(partitionVals);
-        return new HiveEndPoint(m_uri, m_db, m_table, ImmutableList.copyOf(partitionVals));
+        HiveEndPoint endPoint = new CanonicalEndPoint(this, partitionVals);
+        HiveEndPoint canonical = m_endPoints.putIfAbsent(partitionVals, endPoint);
+        return canonical != null ? canonical : endPoint;
+    }
+
+    /**
+     * @return a partition values holder that may be repeatedly filled and
+     *    used to resolve end points without allocating. It must be confined
+     *    to one thread
+     */
+    public Lookup lookup(int partitionCount) {
+        return new Lookup(partitionCount);
+    }
+
+    /**
+     * A reusable holder of partition values. It hashes and compares equal to
+     * the list of its values, so that it may be used to look up canonical
+     * end points that are keyed by their partition values lists
+     */
+    public final class Lookup {
+        private final String [] m_values;
+
+        private Lookup(int partitionCount) {
+            m_values = new String[partitionCount];
+        }
+
+        public Lookup fill(String value) {
+            Arrays.fill(m_values, value);
+            return this;
+        }
+
+        public Lookup set(int partition, String value) {
+            m_values[partition] = value;
+            return this;
+        }
+
+        public HiveEndPoint endPoint() {
+            HiveEndPoint endPoint = m_endPoints.get(this);
+            if (endPoint == null) {
+                endPoint = canonicalize(ImmutableList.copyOf(m_values));
+            }
+            return endPoint;
+        }
+
+        @Override
+        public int hashCode() {
+            // same as List.hashCode()
+            int hashCode = 1;
+            for (String value: m_values) {
+                hashCode = 31 * hashCode + (value == null ? 0 : value.hashCode());
+            }
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof List)) return false;
+            List<?> other = (List<?>)obj;
+            if (other.size() != m_values.length) return false;
+            for (int i = 0; i < m_values.length; ++i) {
+                if (!Objects.equals(m_values[i], other.get(i))) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "Lookup " + Arrays.toString(m_values);
+        }
+    }
+
+    /**
+     * End points handed out by the factory are canonical, and cache their
+     * hash code, as they are used as keys on the write path. They also carry
+     * the record format, so that streams for the same table partition but
+     * different formats are kept apart
+     */
+    final static class CanonicalEndPoint extends HiveEndPoint {
+        private final int m_hashCode;
+        private final HiveEndPointFactory m_factory;
+
+        CanonicalEndPoint(HiveEndPointFactory factory, List<String> partitionVals) {
+            super(factory.m_uri, factory.m_db, factory.m_table, partitionVals);
+            m_factory = factory;
+            m_hashCode = 31 * super.hashCode() + factory.m_recordFormat.ordinal();
+        }
+
+        @Override
+        public int hashCode() {
+            return m_hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CanonicalEndPoint) || o.hashCode() != m_hashCode) return false;
+            return super.equals(o)
+                && m_factory.m_recordFormat == ((CanonicalEndPoint)o).m_factory.m_recordFormat;
+        }
     }
 
     public String getUri() {
@@ -79,10 +251,256 @@ public class HiveEndPointFactory {
         return m_table;
     }
 
+    public RecordFormat getRecordFormat() {
+        return m_recordFormat;
+    }
+
+    /**
+     * @return the record format of end points handed out by a factory, or
+     *    JSON for any other end point
+     */
+    public static RecordFormat recordFormatOf(HiveEndPoint endPoint) {
+        if (endPoint instanceof CanonicalEndPoint) {
+            return ((CanonicalEndPoint)endPoint).m_factory.m_recordFormat;
+        }
+        return RecordFormat.JSON;
+    }
+
+    /**
+     * @return a configuration for streaming to the given end point, copied from
+     *    the base configuration of its factory when it was handed out by one
+     */
+    public static HiveConf confFor(HiveEndPoint endPoint) {
+        if (endPoint instanceof CanonicalEndPoint) {
+            return new HiveConf(((CanonicalEndPoint)endPoint).m_factory.baseConf());
+        }
+        HiveConf conf = new HiveConf(HiveEndPointFactory.class);
+        conf.setVar(HiveConf.ConfVars.METASTOREURIS, endPoint.metaStoreUri);
+        return conf;
+    }
+
+    /**
+     * @return the target table of the given end point, as cached by its factory
+     *    when it was handed out by one. It must not be modified
+     */
+    public static Table tableSchemaOf(HiveEndPoint endPoint, HiveConf conf) {
+        if (endPoint instanceof CanonicalEndPoint) {
+            return ((CanonicalEndPoint)endPoint).m_factory.getTableSchema();
+        }
+        return fetchTableSchema(conf, endPoint.database, endPoint.table);
+    }
+
+    /**
+     * Drops the cached schema of the target table of the given end point, if
+     * any, after an error suggesting that the table schema changed
+     */
+    public static void invalidateSchemaOf(HiveEndPoint endPoint) {
+        if (endPoint instanceof CanonicalEndPoint) {
+            ((CanonicalEndPoint)endPoint).m_factory.invalidateSchema();
+        }
+    }
+
+    /**
+     * @return true if the partition of the given end point is known to exist,
+     *    which is never the case for end points not handed out by a factory
+     */
+    public static boolean isKnownPartitionOf(HiveEndPoint endPoint) {
+        if (endPoint instanceof CanonicalEndPoint) {
+            return ((CanonicalEndPoint)endPoint).m_factory.isKnownPartition(endPoint.partitionVals);
+        }
+        return false;
+    }
+
+    /**
+     * Records whether the partition of the given end point exists, as learned
+     * from connecting to it
+     */
+    public static void partitionExistsFor(HiveEndPoint endPoint, boolean exists) {
+        if (!(endPoint instanceof CanonicalEndPoint)) return;
+
+        HiveEndPointFactory factory = ((CanonicalEndPoint)endPoint).m_factory;
+        if (exists) {
+            factory.m_knownPartitions.add(endPoint.partitionVals);
+        } else {
+            factory.m_knownPartitions.remove(endPoint.partitionVals);
+        }
+    }
+
+    /**
+     * @return the table column names for end points handed out by a factory
+     */
+    public static List<String> tableColumnNamesOf(HiveEndPoint endPoint) {
+        Preconditions.checkArgument(
+                endPoint instanceof CanonicalEndPoint,
+                "%s was not handed out by an end point factory", endPoint
+                );
+        return ((CanonicalEndPoint)endPoint).m_factory.getTableColumnNames();
+    }
+
+    /**
+     * @return the names of the (non partition) columns of the target table,
+     *    in their declaration order, as fetched from the metastore
+     */
+    public List<String> getTableColumnNames() {
+        List<String> tableColumnNames = m_tableColumnNames;
+        if (tableColumnNames == null) {
+            ImmutableList.Builder<String> lbldr = ImmutableList.builder();
+            for (FieldSchema column: getTableSchema().getSd().getCols()) {
+                lbldr.add(column.getName());
+            }
+            m_tableColumnNames = tableColumnNames = lbldr.build();
+        }
+        return tableColumnNames;
+    }
+
+    /**
+     * @return the target table, as fetched from the metastore. It must not be modified
+     */
+    public Table getTableSchema() {
+        Table tableSchema = m_tableSchema;
+        if (tableSchema == null) {
+            m_tableSchema = tableSchema = fetchTableSchema(baseConf(), m_db, m_table);
+        }
+        return tableSchema;
+    }
+
+    public void invalidateSchema() {
+        if (m_tableSchema != null || m_tableColumnNames != null) {
+            LOG.info("Dropping the cached schema of table %s.%s", m_db, m_table);
+        }
+        m_tableSchema = null;
+        m_tableColumnNames = null;
+    }
+
+    public boolean isKnownPartition(List<String> partitionVals) {
+        if (partitionVals == null || partitionVals.isEmpty()) return true;
+        if (!KNOWN_PARTITIONS) return false;
+
+        if (!m_knownPartitionsLoaded) {
+            loadKnownPartitions();
+        }
+        return m_knownPartitions.contains(partitionVals);
+    }
+
+    private synchronized void loadKnownPartitions() {
+        if (m_knownPartitionsLoaded) return;
+
+        HiveMetaStoreClient msClient = null;
+        try {
+            msClient = new HiveMetaStoreClient(baseConf());
+            List<String> names = msClient.listPartitionNames(m_db, m_table, (short)-1);
+            for (String name: names) {
+                ArrayList<String> partitionVals = new ArrayList<>();
+                Warehouse.makeValsFromName(name, partitionVals);
+                m_knownPartitions.add(ImmutableList.copyOf(partitionVals));
+            }
+            LOG.info("Loaded %d known partitions of table %s.%s", names.size(), m_db, m_table);
+        } catch (TException e) {
+            LOG.warn("Unable to load the known partitions of table %s.%s, they are created as needed",
+                    e, m_db, m_table);
+        } finally {
+            m_knownPartitionsLoaded = true;
+            if (msClient != null) {
+                msClient.close();
+            }
+        }
+    }
+
+    /**
+     * Creates, in one metastore round trip, the partitions of the given end
+     * points that are not known to exist, ahead of connecting to them. It is
+     * only worth it for more than one partition, as connecting to a single
+     * one creates it just as cheaply. On failure, partitions are left to be
+     * created on connect, and further attempts are skipped for a backoff
+     * delay. As it goes to the metastore, it is meant to be called from the
+     * threads that write to Hive, and not from decoders that spool
+     */
+    public void createPartitions(Collection<HiveEndPoint> endPoints) {
+        if (!KNOWN_PARTITIONS || endPoints.size() < 2 || !mayCreatePartitions()) return;
+
+        Set<List<String>> missing = new LinkedHashSet<>();
+        for (HiveEndPoint endPoint: endPoints) {
+            if (!isKnownPartition(endPoint.partitionVals)) {
+                missing.add(endPoint.partitionVals);
+            }
+        }
+        if (missing.size() < 2) return;
+
+        HiveMetaStoreClient msClient = null;
+        try {
+            Table tbl = getTableSchema();
+            List<Partition> partitions = new ArrayList<>(missing.size());
+            for (List<String> partitionVals: missing) {
+                StorageDescriptor sd = new StorageDescriptor(tbl.getSd());
+                // let the metastore place it under the table location
+                sd.setLocation(null);
+                Partition partition = new Partition();
+                partition.setDbName(m_db);
+                partition.setTableName(m_table);
+                partition.setValues(new ArrayList<>(partitionVals));
+                partition.setSd(sd);
+                partition.setParameters(new HashMap<String, String>());
+                partitions.add(partition);
+            }
+            msClient = new HiveMetaStoreClient(baseConf());
+            msClient.add_partitions(partitions, true, false);
+            m_knownPartitions.addAll(missing);
+            synchronized (m_createBackoff) {
+                m_createBackoff.reset();
+            }
+            LOG.debug("Created %d partitions of table %s.%s", missing.size(), m_db, m_table);
+        } catch (TException | HiveExportException e) {
+            long delay;
+            synchronized (m_createBackoff) {
+                delay = m_createBackoff.next();
+                m_createRetryAt = System.currentTimeMillis() + delay;
+            }
+            LOG.warn("Unable to create %d partitions of table %s.%s ahead, they are created on connect, "
+                    + "and are not created ahead for the next %d ms",
+                    e, missing.size(), m_db, m_table, delay);
+        } finally {
+            if (msClient != null) {
+                msClient.close();
+            }
+        }
+    }
+
+    private boolean mayCreatePartitions() {
+        synchronized (m_createBackoff) {
+            return System.currentTimeMillis() >= m_createRetryAt;
+        }
+    }
+
+    private HiveConf baseConf() {
+        HiveConf conf = m_baseConf;
+        if (conf == null) {
+            conf = new HiveConf(HiveEndPointFactory.class);
+            conf.setVar(HiveConf.ConfVars.METASTOREURIS, m_uri);
+            m_baseConf = conf;
+        }
+        return conf;
+    }
+
+    private static Table fetchTableSchema(HiveConf conf, String db, String table) {
+        HiveMetaStoreClient msClient = null;
+        try {
+            msClient = new HiveMetaStoreClient(conf);
+            return msClient.getTable(db, table);
+        } catch (TException e) {
+            String msg = "Unable to fetch the schema of table %s.%s";
+            LOG.error(msg, e, db, table);
+            throw new HiveExportException(msg, e, db, table);
+        } finally {
+            if (msClient != null) {
+                msClient.close();
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return "HiveEndPointFactory [uri=" + m_uri + ", db=" + m_db
-                + ", table=" + m_table + "]";
+                + ", table=" + m_table + ", format=" + m_recordFormat + "]";
     }
 
     final static Predicate<String> validPartitionValue = new Predicate<String>() {
@@ -24,12 +24,15 @@
 
 package org.voltdb.exportclient.hive;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.hive.hcatalog.streaming.HiveEndPoint;
 import org.json_voltpatches.JSONException;
 import org.voltcore.utils.CoreUtils;
 import org.voltdb.VoltDB;
@@ -50,17 +53,37 @@ public class HiveExportClient extends ExportClientBase {
     private final static String HIVE_TABLE_PN = "hive.table";
     private final static String HIVE_PARTITION_COLUMNS_PN = "hive.partition.columns";
     private final static String TIMEZONE_PN = "timezone";
+    private final static String HIVE_UTF8_ENCODING_PN = "hive.utf8.encoding";
+    private final static String HIVE_RECORD_FORMAT_PN = "hive.record.format";
+    private final static String HIVE_DIRECT_ROW_DECODING_PN = "hive.direct.row.decoding";
+    private final static String HIVE_COLUMNS_PN = "hive.columns";
+    private final static String HIVE_ROW_FILTERS_PN = "hive.row.filters";
+    private final static String HIVE_PIPELINE_RECORDS_PN = "hive.pipeline.records";
+    private final static String HIVE_PIPELINE_IN_FLIGHT_PN = "hive.pipeline.in.flight";
+    private final static String HIVE_SPOOL_DIR_PN = "hive.spool.dir";
+    private final static String HIVE_SPOOL_MAX_MB_PN = "hive.spool.max.mb";
+    private final static String HIVE_DRAIN_TIMEOUT_PN = "hive.drain.timeout.seconds";
 
     private final static Splitter COMMA_SPLITTER = Splitter.on(",").omitEmptyStrings().trimResults();
     private final static Splitter COLUMN_SPLITTER = Splitter.on(":").omitEmptyStrings().trimResults();
     private final static Splitter PIPE_SPLITTER = Splitter.on("|").omitEmptyStrings().trimResults();
+    private final static Splitter CLAUSE_SPLITTER = Splitter.on(":").limit(2).trimResults();
 
     private final static HiveExportLogger LOG = new HiveExportLogger();
 
     private Multimap<String, String> m_hivePartitionColumns;
+    private Multimap<String, String> m_hiveColumns;
+    private Multimap<String, RowFilter.Clause> m_hiveRowFilters;
     private HiveEndPointFactory m_endPointFactory;
     private TimeZone m_timeZone = VoltDB.REAL_DEFAULT_TIMEZONE;
+    private TimestampFormatter m_timestampFormatter;
     private int m_hivePartionCount;
+    private boolean m_utf8Encoding = true;
+    private boolean m_directRowDecoding = false;
+    private int m_pipelineRecords = 0;
+    private int m_pipelineInFlight = 4;
+    private RecordSpool m_spool = null;
+    private int m_drainTimeoutSeconds = 60;
 
     @Override
     public void configure(Properties config) throws Exception {
@@ -69,12 +92,75 @@ public class HiveExportClient extends ExportClientBase {
         String db = config.getProperty(HIVE_DB_PN, "");
         String table = config.getProperty(HIVE_TABLE_PN, "");
 
-        m_endPointFactory = construcHiveEndPointFactory(uri, db, table);
+        RecordFormat recordFormat = RecordFormat.fromProperty(
+                config.getProperty(HIVE_RECORD_FORMAT_PN, "json")
+                );
+        m_endPointFactory = construcHiveEndPointFactory(uri, db, table, recordFormat);
 
         String timeZoneID = config.getProperty(TIMEZONE_PN, "").trim();
         if (!timeZoneID.isEmpty()) {
             m_timeZone = TimeZone.getTimeZone(timeZoneID);
         }
+        m_timestampFormatter = new TimestampFormatter(m_timeZone);
+
+        m_utf8Encoding = Boolean.parseBoolean(
+                config.getProperty(HIVE_UTF8_ENCODING_PN, "true").trim()
+                );
+        m_directRowDecoding = Boolean.parseBoolean(
+                config.getProperty(HIVE_DIRECT_ROW_DECODING_PN, "false").trim()
+                );
+
+        m_pipelineRecords = Integer.parseInt(
+                config.getProperty(HIVE_PIPELINE_RECORDS_PN, "0").trim()
+                );
+        m_pipelineInFlight = Integer.parseInt(
+                config.getProperty(HIVE_PIPELINE_IN_FLIGHT_PN, "4").trim()
+                );
+        if (m_pipelineRecords < 0 || m_pipelineInFlight <= 0) {
+            throw new IllegalArgumentException(
+                    "Property " + HIVE_PIPELINE_RECORDS_PN + " must not be negative, and property "
+                    + HIVE_PIPELINE_IN_FLIGHT_PN + " must be positive"
+                    );
+        }
+
+        m_drainTimeoutSeconds = Integer.parseInt(
+                config.getProperty(HIVE_DRAIN_TIMEOUT_PN, "60").trim()
+                );
+        if (m_drainTimeoutSeconds <= 0) {
+            throw new IllegalArgumentException("Property " + HIVE_DRAIN_TIMEOUT_PN + " must be positive");
+        }
+
+        String columns = config.getProperty(HIVE_COLUMNS_PN, "");
+        ImmutableMultimap.Builder<String, String> colbldr = ImmutableMultimap.builder();
+        for (String stanza: COMMA_SPLITTER.split(columns)) {
+            List<String> pair = COLUMN_SPLITTER.splitToList(stanza);
+            if (pair.size() != 2) {
+                throw new IllegalArgumentException(
+                        "Malformed value \"" + columns
+                      + "\" for property " + HIVE_COLUMNS_PN
+                        );
+            }
+            for (String column: PIPE_SPLITTER.split(pair.get(1))) {
+                colbldr.put(pair.get(0).toUpperCase(), column.toUpperCase());
+            }
+        }
+        m_hiveColumns = colbldr.build();
+
+        String rowFilters = config.getProperty(HIVE_ROW_FILTERS_PN, "");
+        ImmutableMultimap.Builder<String, RowFilter.Clause> filterbldr = ImmutableMultimap.builder();
+        for (String stanza: COMMA_SPLITTER.split(rowFilters)) {
+            List<String> pair = CLAUSE_SPLITTER.splitToList(stanza);
+            if (pair.size() != 2 || pair.get(0).isEmpty()) {
+                throw new IllegalArgumentException(
+                        "Malformed value \"" + rowFilters
+                      + "\" for property " + HIVE_ROW_FILTERS_PN
+                        );
+            }
+            for (String clause: PIPE_SPLITTER.split(pair.get(1))) {
+                filterbldr.put(pair.get(0).toUpperCase(), RowFilter.Clause.parse(clause));
+            }
+        }
+        m_hiveRowFilters = filterbldr.build();
 
         String partitionColumns = config.getProperty(HIVE_PARTITION_COLUMNS_PN, "");
 
@@ -109,11 +195,21 @@ public class HiveExportClient extends ExportClientBase {
                 }
             }
         }
+
+        // opened last, so that a rejected configuration leaves no drainer behind
+        String spoolDir = config.getProperty(HIVE_SPOOL_DIR_PN, "").trim();
+        if (!spoolDir.isEmpty()) {
+            long spoolMaxMB = Long.parseLong(config.getProperty(HIVE_SPOOL_MAX_MB_PN, "1024").trim());
+            m_spool = new RecordSpool(
+                    new File(spoolDir), spoolMaxMB * 1024 * 1024, m_endPointFactory, getSink()
+                    );
+        }
     }
 
     // this allows easier mocking for unit tests
-    HiveEndPointFactory construcHiveEndPointFactory(String uri, String db, String table) {
-        return new HiveEndPointFactory(uri, db, table);
+    HiveEndPointFactory construcHiveEndPointFactory(String uri, String db, String table,
+            RecordFormat recordFormat) {
+        return new HiveEndPointFactory(uri, db, table, recordFormat);
     }
 
     // this allows easier mocking for unit tests
@@ -124,14 +220,21 @@ public class HiveExportClient extends ExportClientBase {
     class HiveExportDecoder extends ExportDecoderBase {
         boolean m_primed = false;
         StreamingHiveDecoder m_decoder;
+        ExportRowReader m_rowReader;
+        HiveSink.Pipeline m_pipeline;
+        final MemoryBudget.Reservation m_reservation = getSink().getMemoryBudget() != null
+                ? getSink().getMemoryBudget().reservation() : null;
+        final Backoff m_restartBackoff = new Backoff();
         final ListeningExecutorService m_es;
 
         public HiveExportDecoder(AdvertisedDataSource ds) {
             super(ds);
-            m_es = CoreUtils.getListeningSingleThreadExecutor(
-                    "Hive Export decoder for partition " + ds.partitionId
+            String threadName = "Hive Export decoder for partition " + ds.partitionId
                     + " table " + ds.tableName
-                    + " generation " + ds.m_generation, CoreUtils.MEDIUM_STACK_SIZE);
+                    + " generation " + ds.m_generation;
+            m_es = ElasticExecutors.ENABLED
+                    ? ElasticExecutors.serial(threadName)
+                    : CoreUtils.getListeningSingleThreadExecutor(threadName, CoreUtils.MEDIUM_STACK_SIZE);
         }
 
         final void checkOnFirstRow() throws RestartBlockException {
@@ -144,24 +247,52 @@ public class HiveExportClient extends ExportClientBase {
                             "table " + m_source.tableName + " is not listed in the \""
                                     + HIVE_PARTITION_COLUMNS_PN + "\" configuration property");
                 }
+                String tableName = m_source.tableName.toUpperCase();
+                RowFilter rowFilter = RowFilter.compile(
+                        ImmutableList.copyOf(m_hiveRowFilters.get(tableName)),
+                        m_source.columnNames, m_source.columnTypes, m_timeZone
+                        );
                 StreamingHiveDecoder.Builder builder = StreamingHiveDecoder.builder();
                 builder
                     .endPointFactory(m_endPointFactory)
                     .partitionColumnNames(partitionColumnNames)
                     .timeZone(m_timeZone)
+                    .timestampFormatter(m_timestampFormatter)
                     .camelCaseFieldNames(false)
+                    .utf8Encoding(m_utf8Encoding)
+                    .tableColumnNames(tableColumnNamesFor(m_endPointFactory))
+                    .projectedColumnNames(ImmutableList.copyOf(m_hiveColumns.get(tableName)))
+                    .rowFilter(rowFilter)
                     .columnNames(m_source.columnNames)
                     .columnTypes(m_source.columnTypes)
                     .skipInternalFields(true)
                 ;
                 m_decoder = builder.build();
+                if (m_pipelineRecords > 0 && m_spool == null) {
+                    m_pipeline = getSink().pipeline(m_pipelineInFlight);
+                }
+                if (m_directRowDecoding) {
+                    if (ExportRowReader.supports(m_source.columnTypes)) {
+                        m_rowReader = new ExportRowReader(m_source.columnTypes);
+                    } else {
+                        LOG.warn("Table %s has column types that cannot be decoded directly, "
+                                + "its rows will be decoded into objects", m_source.tableName);
+                    }
+                }
                 m_primed = true;
-            } catch (IllegalArgumentException e) {
+            } catch (IllegalArgumentException | HiveExportException e) {
                 LOG.error("Unable to initialize decoder for %s", e, m_endPointFactory);
                 throw new RestartBlockException("unable to initialze decoder", e, true);
             }
         }
 
+        private List<String> tableColumnNamesFor(HiveEndPointFactory factory) {
+            if (factory.getRecordFormat() == RecordFormat.JSON) {
+                return null;
+            }
+            return factory.getTableColumnNames();
+        }
+
         @Override
         public ListeningExecutorService getExecutor() {
             return m_es;
@@ -170,6 +301,36 @@ public class HiveExportClient extends ExportClientBase {
         @Override
         public void onBlockStart() throws RestartBlockException {
             if (!m_primed) checkOnFirstRow();
+            if (m_pipeline != null) {
+                m_pipeline.discard();
+            }
+            m_decoder.discard();
+            if (m_reservation != null) {
+                m_reservation.release();
+            }
+        }
+
+        /**
+         * Reserves memory budget for the records the arena holds beyond what is
+         * already reserved. When it is not available in time, the block is shed
+         * and redelivered later
+         */
+        private void reserveFor(RecordArena arena) throws RestartBlockException {
+            long needed = arena.getBytes() - m_reservation.getHeld();
+            if (needed <= 0) return;
+
+            long reservation = Math.max(needed, MemoryBudget.CHUNK_SIZE);
+            boolean reserved;
+            try {
+                reserved = m_reservation.reserve(reservation, MemoryBudget.WAIT_MS);
+            } catch (InterruptedException e) {
+                m_reservation.release();
+                throw new RestartBlockException("Interrupted while reserving memory budget", e, true);
+            }
+            if (!reserved) {
+                m_reservation.release();
+                throw new RestartBlockException("Hive export memory budget exhausted", true);
+            }
         }
 
         @Override
@@ -177,33 +338,128 @@ public class HiveExportClient extends ExportClientBase {
             if (!m_primed) checkOnFirstRow();
 
             try {
-                m_decoder.add(decodeRow(rowData).values);
+                if (m_rowReader != null) {
+                    m_decoder.add(m_rowReader.wrap(rowData));
+                } else {
+                    m_decoder.add(decodeRow(rowData).values);
+                }
             } catch (IOException|JSONException e) {
                 // non restartable structural failure
                 LOG.error("Unable to decode notification", e);
                 return false;
             }
+            if (m_reservation != null) {
+                reserveFor(m_decoder.arena());
+            }
+            if (m_pipeline != null) {
+                RecordArena arena = m_decoder.arena();
+                RecordArena.Records last = arena.last();
+                if (last != null && last.size() >= m_pipelineRecords) try {
+                    m_pipeline.submit(last.getEndPoint(), arena.drain(last));
+                } catch (HiveExportException e) {
+                    throw restartAfterBackoff(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RestartBlockException("Interrupted while writing to Hive", e, true);
+                }
+            }
             return true;
         }
 
+        /**
+         * Creates the partitions of the block end points ahead of writing them,
+         * when the block is written straight to Hive. Spooled blocks have their
+         * partitions created ahead by the spool drainer instead, so that a
+         * metastore outage does not hold up decoders
+         */
+        private void createPartitionsAhead(RecordArena arena) {
+            if (m_spool != null || arena.getEndPointCount() < 2) return;
+
+            List<HiveEndPoint> endPoints = new ArrayList<>(arena.getEndPointCount());
+            for (RecordArena.Records records: arena) {
+                endPoints.add(records.getEndPoint());
+            }
+            m_endPointFactory.createPartitions(endPoints);
+        }
+
+        /**
+         * Backs off before having the block restarted, so that a failing Hive
+         * end point does not have its blocks restarted in a tight loop
+         */
+        private RestartBlockException restartAfterBackoff(HiveExportException fault) {
+            try {
+                m_restartBackoff.sleep();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new RestartBlockException("Hive write fault", fault, true);
+        }
+
         @Override
         public void onBlockCompletion() throws RestartBlockException {
             try {
-                getSink().write(m_decoder.harvest());
+                createPartitionsAhead(m_decoder.arena());
+                if (m_spool != null) {
+                    m_spool.append(m_decoder.harvest());
+                } else if (m_pipeline != null) {
+                    m_pipeline.complete(m_decoder.harvest());
+                } else {
+                    getSink().write(m_decoder.harvest());
+                }
+                m_restartBackoff.reset();
             } catch (HiveExportException e) {
-                throw new RestartBlockException("Hive write fault", e, true);
+                throw restartAfterBackoff(e);
+            } catch (InterruptedException e) {
+                // writes may still read from the harvested arena, which must thus not be reused
+                m_decoder.abandon();
+                Thread.currentThread().interrupt();
+                throw new RestartBlockException("Interrupted while writing to Hive", e, true);
+            } finally {
+                if (m_reservation != null) {
+                    m_reservation.release();
+                }
             }
         }
 
+        /**
+         * Lets the block in progress complete, along with the writes it is
+         * waiting on, within the configured drain timeout. Past it, remaining
+         * work is abandoned: the decoder is interrupted out of its wait on Hive
+         * writes, and the block in progress is restarted instead of acknowledged,
+         * so that it is replayed by whichever node next takes over the source.
+         * Hive streams are shared with other decoders, and are left for the
+         * connection pool to close once idle
+         */
         @Override
         public void sourceNoLongerAdvertised(AdvertisedDataSource source) {
+            final long start = System.nanoTime();
+            final long deadline = start + TimeUnit.SECONDS.toNanos(m_drainTimeoutSeconds);
             getSink().nudge();
             m_es.shutdown();
+            boolean drained = false;
             try {
-                m_es.awaitTermination(365, TimeUnit.DAYS);
+                drained = m_es.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
             } catch (InterruptedException e) {
-                throw new HiveExportException("Interrupted while awaiting executor shutdown", e);
+                throw new HiveExportException("Interrupted while draining %s", e, source);
+            } finally {
+                if (!drained) {
+                    m_es.shutdownNow();
+                }
             }
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (drained) {
+                LOG.info("Drained %s in %d ms", source, elapsed);
+            } else {
+                LOG.warn("Abandoned draining %s after %d ms, its unacknowledged rows are left for replay",
+                        source, elapsed);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (m_spool != null) {
+            m_spool.shutdown();
         }
     }
 
@@ -25,35 +25,99 @@
 package org.voltdb.exportclient.hive;
 
 import java.io.Closeable;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.hadoop.hive.conf.HiveConf;
 import org.apache.hive.hcatalog.streaming.HiveEndPoint;
+import org.apache.hive.hcatalog.streaming.RecordWriter;
+import org.apache.hive.hcatalog.streaming.SerializationError;
 import org.apache.hive.hcatalog.streaming.StreamingConnection;
 import org.apache.hive.hcatalog.streaming.StreamingException;
 import org.apache.hive.hcatalog.streaming.StrictJsonWriter;
 import org.apache.hive.hcatalog.streaming.TransactionBatch;
 import org.apache.hive.hcatalog.streaming.TransactionBatchUnAvailable;
+import org.voltcore.utils.CoreUtils;
 
-import com.google_voltpatches.common.base.Function;
-import com.google_voltpatches.common.collect.FluentIterable;
+import com.google_voltpatches.common.util.concurrent.ListenableFuture;
+import com.google_voltpatches.common.util.concurrent.ListeningExecutorService;
+import com.google_voltpatches.common.util.concurrent.MoreExecutors;
 
 public class HivePartitionStream implements Closeable {
     private final static HiveExportLogger LOG = new HiveExportLogger();
+    /** the initial transaction batch size, since adjusted to the stream latencies */
     final static int HIVE_TRANSACTION_BATCH_SIZE =
             Integer.getInteger("HIVE_TRANSACTION_BATCH_SIZE", 64);
+    /** prefetch the next batch when the current one has this many transactions left, 0 disables it */
+    final static int HIVE_BATCH_PREFETCH_REMAINING =
+            Integer.getInteger("HIVE_BATCH_PREFETCH_REMAINING", 4);
+    final static int HIVE_BATCH_PREFETCH_THREADS =
+            Integer.getInteger("HIVE_BATCH_PREFETCH_THREADS", 2);
 
     final HiveConf m_conf;
+    final RecordFormat m_recordFormat;
+    final List<String> m_tableColumnNames;
+    // the end point as handed out by its factory, which holds its shared schema
+    final HiveEndPoint m_factoryEndPoint;
     HiveEndPoint m_endPoint;
     StreamingConnection m_connection;
-    StrictJsonWriter m_writer;
+    RecordWriter m_writer;
     TransactionBatch m_batch;
+    final TransactionSizing m_sizing;
+
+    /*
+     * the next batch is fetched in the background with a spare record writer,
+     * as fetching a batch resets the record writer it is given. The connection
+     * metastore client is not thread safe, so its use by the prefetch and by
+     * the transactions of the current batch is serialized
+     */
+    final Object m_metastoreLock = new Object();
+    RecordWriter m_spareWriter;
+    ListenableFuture<Prefetched> m_prefetch;
+
+    // held while the stream is in use, so that idle stream upkeep never runs alongside it
+    final ReentrantLock m_inUse = new ReentrantLock();
+    volatile long m_lastUsedAt = System.currentTimeMillis();
+
+    private final static class Prefetched {
+        private final TransactionBatch m_batch;
+        private final RecordWriter m_writer;
+        private final long m_openNanos;
+
+        private Prefetched(TransactionBatch batch, RecordWriter writer, long openNanos) {
+            m_batch = batch;
+            m_writer = writer;
+            m_openNanos = openNanos;
+        }
+    }
+
+    private final static class Prefetcher {
+        private final static ListeningExecutorService executor;
+        static {
+            ThreadPoolExecutor tpe = new ThreadPoolExecutor(
+                    HIVE_BATCH_PREFETCH_THREADS, HIVE_BATCH_PREFETCH_THREADS, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    CoreUtils.getThreadFactory("Hive Export Batch Prefetcher", CoreUtils.SMALL_STACK_SIZE));
+            tpe.allowCoreThreadTimeOut(true);
+            executor = MoreExecutors.listeningDecorator(tpe);
+        }
+    }
 
     public HivePartitionStream(HiveEndPoint endPoint) {
-        m_conf = new HiveConf(HivePartitionStream.class);
-        m_conf.setVar(HiveConf.ConfVars.METASTOREURIS, endPoint.metaStoreUri);
+        m_factoryEndPoint = endPoint;
+        m_conf = HiveEndPointFactory.confFor(endPoint);
+        m_recordFormat = HiveEndPointFactory.recordFormatOf(endPoint);
+        m_tableColumnNames = m_recordFormat == RecordFormat.DELIMITED
+                ? HiveEndPointFactory.tableColumnNamesOf(endPoint)
+                : null;
+        m_sizing = new TransactionSizing(endPoint, HIVE_TRANSACTION_BATCH_SIZE);
 
         connect(endPoint);
         checkBatch();
@@ -63,17 +127,54 @@ public class HivePartitionStream implements Closeable {
         m_endPoint = new HiveEndPoint(
                 ep.metaStoreUri, ep.database, ep.table, ep.partitionVals
                 );
+        boolean known = HiveEndPointFactory.isKnownPartitionOf(m_factoryEndPoint);
         try {
-            // TODO: may need to pass user impersonation
-            m_connection = m_endPoint.newConnection(true, m_conf);
-            m_writer = new StrictJsonWriter(m_endPoint, m_conf);
+            try {
+                // TODO: may need to pass user impersonation
+                m_connection = m_endPoint.newConnection(!known, m_conf);
+                m_writer = newRecordWriter();
+            } catch (StreamingException e) {
+                if (!known) throw e;
+                // it may have been dropped since it became known
+                HiveEndPointFactory.partitionExistsFor(m_factoryEndPoint, false);
+                close();
+                m_connection = m_endPoint.newConnection(true, m_conf);
+                m_writer = newRecordWriter();
+            }
+            HiveEndPointFactory.partitionExistsFor(m_factoryEndPoint, true);
         } catch (InterruptedException | StreamingException e) {
+            checkSchemaError(e);
             String msg = "failed to connect to: %s";
             LOG.error(msg, e, m_endPoint);
             throw new HiveExportException(msg, e, m_endPoint);
         }
     }
 
+    protected RecordWriter newRecordWriter() throws StreamingException {
+        switch (m_recordFormat) {
+        case ORC:
+            return new NativeRecordWriter(m_factoryEndPoint, m_conf);
+        case DELIMITED:
+            try {
+                return new DelimitedRecordWriter(m_tableColumnNames, m_endPoint, m_conf);
+            } catch (ClassNotFoundException e) {
+                throw new StreamingException(e.getMessage(), e);
+            }
+        default:
+            return new StrictJsonWriter(m_endPoint, m_conf);
+        }
+    }
+
+    /**
+     * Drops the cached table schema when a failure suggests that the table
+     * schema changed under us
+     */
+    private void checkSchemaError(Exception e) {
+        if (e instanceof SerializationError || e.getCause() instanceof SerializationError) {
+            HiveEndPointFactory.invalidateSchemaOf(m_factoryEndPoint);
+        }
+    }
+
     public HiveEndPoint getEndPoint() {
         return m_endPoint;
     }
@@ -82,20 +183,25 @@ public class HivePartitionStream implements Closeable {
         if (m_batch == null || m_batch.remainingTransactions() == 0)  try {
 
             if (m_batch != null) try {
+                m_sizing.batchUsedUp();
                 m_batch.close();
             } catch (Exception ignoreIt) {
             } finally {
                 m_batch = null;
             }
+            if (takePrefetched()) return;
 
             int attemptsLeft = 4;
+            Backoff backoff = new Backoff();
             TransactionBatchUnAvailable retriedException = null;
 
             ATTEMPT_LOOP: while (--attemptsLeft >= 0) try {
 
+                final long start = System.nanoTime();
                 m_batch = m_connection.fetchTransactionBatch(
-                        HIVE_TRANSACTION_BATCH_SIZE, m_writer
+                        m_sizing.getBatchSize(), m_writer
                         );
+                m_sizing.batchOpened(System.nanoTime() - start);
 
                 retriedException = null;
                 break ATTEMPT_LOOP;
@@ -104,7 +210,7 @@ public class HivePartitionStream implements Closeable {
 
                 retriedException = e;
                 if (attemptsLeft > 0) {
-                    Thread.sleep(30);
+                    backoff.sleep();
                 } else {
                     close();
                     connect(m_endPoint);
@@ -121,62 +227,212 @@ public class HivePartitionStream implements Closeable {
         }
     }
 
-    @Override
-    public void close() {
+    /**
+     * Starts fetching the next batch in the background, when the current one
+     * is nearly used up
+     */
+    private void prefetch() {
+        if (HIVE_BATCH_PREFETCH_REMAINING <= 0 || m_prefetch != null
+                || m_batch == null || m_batch.remainingTransactions() > HIVE_BATCH_PREFETCH_REMAINING) {
+            return;
+        }
+        final StreamingConnection connection = m_connection;
+        final RecordWriter spare = m_spareWriter;
+        final int batchSize = m_sizing.getBatchSize();
+        m_prefetch = Prefetcher.executor.submit(new Callable<Prefetched>() {
+            @Override
+            public Prefetched call() throws Exception {
+                RecordWriter writer = spare != null ? spare : newRecordWriter();
+                synchronized (m_metastoreLock) {
+                    final long start = System.nanoTime();
+                    TransactionBatch batch = connection.fetchTransactionBatch(batchSize, writer);
+                    return new Prefetched(batch, writer, System.nanoTime() - start);
+                }
+            }
+        });
+    }
+
+    /**
+     * Switches to the prefetched batch, if any. A prefetch that has not started
+     * yet is cancelled, as fetching on the spot is then quicker than waiting
+     *
+     * @return true if switched
+     */
+    private boolean takePrefetched() throws InterruptedException {
+        ListenableFuture<Prefetched> prefetch = m_prefetch;
+        m_prefetch = null;
+        if (prefetch == null || prefetch.cancel(false)) {
+            return false;
+        }
+        try {
+            Prefetched prefetched = prefetch.get();
+            m_spareWriter = m_writer;
+            m_writer = prefetched.m_writer;
+            m_batch = prefetched.m_batch;
+            m_sizing.batchOpened(prefetched.m_openNanos);
+            return true;
+        } catch (ExecutionException e) {
+            LOG.debug("Failed to prefetch transaction batch for %s", e.getCause(), m_endPoint);
+            return false;
+        }
+    }
+
+    private void discardPrefetched() {
+        ListenableFuture<Prefetched> prefetch = m_prefetch;
+        m_prefetch = null;
+        if (prefetch == null || prefetch.cancel(false)) {
+            return;
+        }
+        try {
+            Prefetched prefetched = prefetch.get();
+            m_spareWriter = prefetched.m_writer;
+            prefetched.m_batch.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ignoreIt) {
+        }
+    }
+
+    private void closeBatch() {
         if (m_batch != null) try {
             m_batch.close();
         } catch (Exception ignoreIt) {
         } finally {
             m_batch = null;
         }
-        if (m_connection != null) try {
-            m_connection.close();
-        } catch (Exception ignoreIt) {
+    }
+
+    /**
+     * Keeps the open transactions of an idle stream from timing out on the
+     * metastore by heartbeating them, and once the stream has been idle
+     * past the given threshold, closes its batches instead, so that its
+     * next write opens a fresh one. A stream in use is left alone
+     */
+    void keepAlive(long heartbeatIdleMs, long closeIdleMs) {
+        long idle = System.currentTimeMillis() - m_lastUsedAt;
+        if (idle < heartbeatIdleMs || !m_inUse.tryLock()) return;
+        try {
+            if (m_batch == null && m_prefetch == null) return;
+
+            if (idle >= closeIdleMs) {
+                LOG.debug("Closing transaction batch of %s, idle for %d s",
+                        m_endPoint, TimeUnit.MILLISECONDS.toSeconds(idle));
+                discardPrefetched();
+                closeBatch();
+                return;
+            }
+            try {
+                synchronized (m_metastoreLock) {
+                    if (m_batch != null) {
+                        m_batch.heartbeat();
+                    }
+                    ListenableFuture<Prefetched> prefetch = m_prefetch;
+                    if (prefetch != null && prefetch.isDone() && !prefetch.isCancelled()) try {
+                        prefetch.get().m_batch.heartbeat();
+                    } catch (ExecutionException ignoreIt) {
+                    }
+                }
+            } catch (StreamingException | RuntimeException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                LOG.warn("Failed to heartbeat transaction batch of %s, closing it", e, m_endPoint);
+                discardPrefetched();
+                closeBatch();
+            }
+        } finally {
+            m_inUse.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        m_inUse.lock();
+        try {
+            discardPrefetched();
+            closeBatch();
+            if (m_connection != null) try {
+                m_connection.close();
+            } catch (Exception ignoreIt) {
+            } finally {
+                m_writer = null;
+                m_connection = null;
+            }
         } finally {
-            m_writer = null;
-            m_connection = null;
+            m_inUse.unlock();
         }
     }
 
-    public void write(Collection<String> jsons) {
-        if (jsons == null || jsons.isEmpty()) return;
+    /**
+     * Writes the given records, in as many transactions as the current
+     * records per transaction sizing calls for
+     */
+    public void write(Collection<byte[]> records) {
+        if (records == null || records.isEmpty()) return;
 
+        m_inUse.lock();
+        try {
+            if (records.size() <= m_sizing.getRecordsPerTransaction()) {
+                writeTransaction(records);
+                return;
+            }
+            List<byte[]> list = records instanceof List ? (List<byte[]>)records : new ArrayList<>(records);
+            int from = 0;
+            while (from < list.size()) {
+                int to = Math.min(list.size(), from + m_sizing.getRecordsPerTransaction());
+                writeTransaction(list.subList(from, to));
+                from = to;
+            }
+        } finally {
+            m_lastUsedAt = System.currentTimeMillis();
+            m_inUse.unlock();
+        }
+    }
+
+    private void writeTransaction(Collection<byte[]> records) {
         checkBatch();
-        List<byte[]> messages = FluentIterable.from(jsons).transform(asBytes).toList();
 
         int attemptsLeft = 3;
+        Backoff backoff = null;
         StreamingException retriedException = null;
         try {
             ATTEMPT_LOOP: while (--attemptsLeft >= 0) try {
 
-                m_batch.beginNextTransaction();
-                m_batch.write(messages);
-                m_batch.commit();
+                synchronized (m_metastoreLock) {
+                    final long start = System.nanoTime();
+                    m_batch.beginNextTransaction();
+                    final long begun = System.nanoTime();
+                    m_batch.write(records);
+                    final long written = System.nanoTime();
+                    m_batch.commit();
+                    m_sizing.transactionCommitted(
+                            records.size(), written - begun, (begun - start) + (System.nanoTime() - written));
+                }
 
                 retriedException = null;
                 break ATTEMPT_LOOP;
 
             } catch (StreamingException e) {
                 retriedException = e;
+                checkSchemaError(e);
 
                 close();
-                connect(m_endPoint);
-                checkBatch();
+                if (attemptsLeft > 0) {
+                    // back off before reconnecting, rather than flood a struggling metastore
+                    if (backoff == null) backoff = new Backoff();
+                    backoff.sleep();
+                    connect(m_endPoint);
+                    checkBatch();
+                }
             }
             if (retriedException != null) {
                 throw retriedException;
             }
+            prefetch();
         } catch (StreamingException | InterruptedException e) {
             String msg = "Failed to write to endpoint \"%s\"";
             LOG.error(msg, e, m_endPoint);
             throw new HiveExportException(msg, e, m_endPoint);
         }
     }
-
-    final static Function<String,byte[]> asBytes = new Function<String, byte[]>() {
-        @Override
-        public byte[] apply(String input) {
-            return input.getBytes(StandardCharsets.UTF_8);
-        }
-    };
 }
@@ -24,38 +24,97 @@
 
 package org.voltdb.exportclient.hive;
 
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hive.hcatalog.streaming.HiveEndPoint;
-import org.voltcore.utils.CoreUtils;
 
-import com.google_voltpatches.common.collect.ImmutableList;
-import com.google_voltpatches.common.collect.Multimap;
+import com.google_voltpatches.common.base.Preconditions;
+import com.google_voltpatches.common.collect.ImmutableMap;
 import com.google_voltpatches.common.util.concurrent.Futures;
 import com.google_voltpatches.common.util.concurrent.ListenableFuture;
-import com.google_voltpatches.common.util.concurrent.ListeningExecutorService;
+import com.google_voltpatches.common.util.concurrent.SettableFuture;
 
 public class HiveSink {
     private final static HiveExportLogger LOG = new HiveExportLogger();
 
+    /** the initial number of concurrent writers, since adjusted to commit latency */
     public final static int HIVE_CONCURRENT_WRITERS = Integer.getInteger("HIVE_CONCURRENT_WRITERS", 4);
 
-    private final List<ListeningExecutorService> m_executors;
-    private final HiveConnectionPool m_pool = new HiveConnectionPool();
+    /*
+     * end point write queues are not pinned to writer threads. Any idle
+     * writer takes the next ready end point queue, and may steal it from
+     * the local queue of a busy one, while the queue itself makes sure
+     * that only one writer at a time commits for its end point
+     */
+    private final ForkJoinPool m_writers;
+    private final AdaptiveConcurrency m_concurrency;
+    private final HiveConnectionPool m_pool;
+    private final RecordCoalescer m_coalescer;
+    private final MemoryBudget m_budget;
+    private final ConcurrentMap<HiveEndPoint, EndPointWrites> m_writes = new ConcurrentHashMap<>();
 
     private HiveSink() {
-        ImmutableList.Builder<ListeningExecutorService> lbldr = ImmutableList.builder();
-        for (int i = 0; i < HIVE_CONCURRENT_WRITERS; ++i) {
-            String threadName = "Hive Export Sink Writer " + i;
-            lbldr.add(CoreUtils.getListeningSingleThreadExecutor(threadName,CoreUtils.MEDIUM_STACK_SIZE));
-        }
-        m_executors = lbldr.build();
+        this(new HiveConnectionPool());
+    }
+
+    HiveSink(HiveConnectionPool pool) {
+        m_pool = pool;
+        m_pool.setEvictionListener(writesRetirer);
+        // elastic writers start with a thread per core, and the pool adds threads for those blocked on Hive
+        int parallelism = ElasticExecutors.ENABLED
+                ? Math.min(Runtime.getRuntime().availableProcessors(), AdaptiveConcurrency.MAX_WRITERS)
+                : AdaptiveConcurrency.MAX_WRITERS;
+        m_writers = new ForkJoinPool(parallelism, writerFactory, uncaughtHandler, true);
+        m_concurrency = new AdaptiveConcurrency(
+                m_writers,
+                HIVE_CONCURRENT_WRITERS,
+                AdaptiveConcurrency.MIN_WRITERS,
+                AdaptiveConcurrency.MAX_WRITERS,
+                AdaptiveConcurrency.ADJUST_INTERVAL_MS);
+        m_coalescer = RecordCoalescer.isEnabled() ? new RecordCoalescer(
+                this,
+                RecordCoalescer.MAX_DELAY_MS,
+                RecordCoalescer.MAX_ROWS,
+                RecordCoalescer.MAX_BYTES) : null;
+        m_budget = MemoryBudget.isEnabled() ? new MemoryBudget(MemoryBudget.BUDGET_MB * 1024L * 1024L) : null;
     }
 
+    private final static ForkJoinWorkerThreadFactory writerFactory = new ForkJoinWorkerThreadFactory() {
+        private final AtomicInteger m_count = new AtomicInteger(0);
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {};
+            thread.setName("Hive Export Sink Writer " + m_count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final static UncaughtExceptionHandler uncaughtHandler = new UncaughtExceptionHandler() {
+        @Override
+        public void uncaughtException(Thread t, Throwable e) {
+            LOG.error("Uncaught exception in %s", e, t.getName());
+        }
+    };
+
     private final static class Holder {
         private final static HiveSink instance = new HiveSink();
     }
@@ -64,45 +123,365 @@ public class HiveSink {
         return Holder.instance;
     }
 
-    ListenableFuture<?> asWriteTask(final HiveEndPoint endPoint, final Collection<String> records) {
-        final int hashed = Math.abs(endPoint.partitionVals.hashCode() % HIVE_CONCURRENT_WRITERS);
-        if (m_executors.get(hashed).isShutdown()) {
+    ListenableFuture<?> asWriteTask(final HiveEndPoint endPoint, final Collection<byte[]> records) {
+        if (m_writers.isShutdown()) {
             return Futures.immediateFailedFuture(new HiveExportException("hive sink executor is shut down"));
         }
-        return m_executors.get(hashed).submit(new Callable<Void>() {
-            @Override
-            public Void call() throws Exception {
-                HivePartitionStream stream = m_pool.get(endPoint);
+        while (true) {
+            EndPointWrites writes = writesFor(endPoint);
+            ListenableFuture<?> committed = writes.add(records);
+            if (committed != null) return committed;
+            m_writes.remove(endPoint, writes);
+        }
+    }
+
+    private EndPointWrites writesFor(HiveEndPoint endPoint) {
+        EndPointWrites writes = m_writes.get(endPoint);
+        if (writes == null) {
+            writes = new EndPointWrites(endPoint, m_concurrency);
+            EndPointWrites racer = m_writes.putIfAbsent(endPoint, writes);
+            if (racer != null) {
+                writes = racer;
+            }
+        }
+        return writes;
+    }
+
+    /*
+     * retires the write queue of an end point whose stream left the pool, if
+     * it is idle and its circuit is closed, so that queues do not accumulate
+     * for end points that are no longer written to, like those of past
+     * time partitions
+     */
+    private final HiveConnectionPool.EvictionListener writesRetirer = new HiveConnectionPool.EvictionListener() {
+        @Override
+        public void evicted(HiveEndPoint endPoint) {
+            EndPointWrites writes = m_writes.get(endPoint);
+            if (writes != null && writes.retireIfIdle()) {
+                m_writes.remove(endPoint, writes);
+            }
+        }
+    };
+
+    private final static class PendingWrite {
+        private final Collection<byte[]> m_records;
+        private final SettableFuture<Object> m_committed = SettableFuture.create();
+
+        private PendingWrite(Collection<byte[]> records) {
+            m_records = records;
+        }
+    }
+
+    /**
+     * The queue of pending writes for one end point. When a writer thread
+     * gets to it, it takes every write pending at that time, and commits
+     * them all in one transaction, so that the same end point rows
+     * concurrently exported from several VoltDB partitions do not each pay
+     * for their own transaction.
+     */
+    private final class EndPointWrites implements Runnable {
+        private final HiveEndPoint m_endPoint;
+        private final CircuitBreaker m_breaker;
+        private final Executor m_executor;
+        private final Queue<PendingWrite> m_pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean m_scheduled = new AtomicBoolean(false);
+        // guarded by this
+        private boolean m_retired = false;
+
+        private EndPointWrites(HiveEndPoint endPoint, Executor executor) {
+            m_endPoint = endPoint;
+            m_breaker = new CircuitBreaker(endPoint);
+            m_executor = executor;
+        }
+
+        /**
+         * @return a future that completes when the given records are committed,
+         *    or null if this queue is retired, and a new one must be used
+         */
+        private ListenableFuture<?> add(Collection<byte[]> records) {
+            PendingWrite write = new PendingWrite(records);
+            synchronized (this) {
+                if (m_retired) return null;
+                m_pending.add(write);
+            }
+            schedule();
+            return write.m_committed;
+        }
+
+        /**
+         * Retires this queue if it has no pending writes, nor a writer committing
+         * them, and its circuit is closed. Writes are only ever added to a queue
+         * that is not retired, so that there is at most one live queue per end point
+         *
+         * @return true if retired
+         */
+        private synchronized boolean retireIfIdle() {
+            if (!m_retired && m_pending.isEmpty() && !m_scheduled.get()
+                    && m_breaker.getState() == CircuitBreaker.State.CLOSED) {
+                m_retired = true;
+            }
+            return m_retired;
+        }
+
+        private void schedule() {
+            if (m_scheduled.compareAndSet(false, true)) try {
+                m_executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                m_scheduled.set(false);
+                HiveExportException fault = new HiveExportException("hive sink executor is shut down", e);
+                for (PendingWrite write = m_pending.poll(); write != null; write = m_pending.poll()) {
+                    write.m_committed.setException(fault);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            List<PendingWrite> writes = new ArrayList<>();
+            int recordCount = 0;
+            for (PendingWrite write = m_pending.poll(); write != null; write = m_pending.poll()) {
+                writes.add(write);
+                recordCount += write.m_records.size();
+            }
+            try {
+                if (!writes.isEmpty()) {
+                    commit(writes, recordCount);
+                }
+            } finally {
+                m_scheduled.set(false);
+                if (!m_pending.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+
+        private void commit(List<PendingWrite> writes, int recordCount) {
+            Collection<byte[]> records = writes.get(0).m_records;
+            if (writes.size() > 1) {
+                List<byte[]> merged = new ArrayList<>(recordCount);
+                for (PendingWrite write: writes) {
+                    merged.addAll(write.m_records);
+                }
+                records = merged;
+            }
+            if (!m_breaker.allowRequest()) {
+                HiveExportException fault = new HiveExportException(
+                        "Hive end point %s is failing, it is next probed in %d ms",
+                        m_endPoint, m_breaker.getRetryInMillis());
+                for (PendingWrite write: writes) {
+                    write.m_committed.setException(fault);
+                }
+                return;
+            }
+            final Collection<byte[]> committed = records;
+            final long start = System.nanoTime();
+            try {
+                final HivePartitionStream stream = m_pool.get(m_endPoint);
                 try {
-                    stream.write(records);
+                    ElasticExecutors.runBlocking(new Runnable() {
+                        @Override
+                        public void run() {
+                            stream.write(committed);
+                        }
+                    });
                 } catch (HiveExportException e) {
-                    m_pool.evict(endPoint);
+                    m_pool.evict(m_endPoint);
                     throw e;
                 }
-                return null;
+            } catch (RuntimeException | Error e) {
+                m_breaker.failed();
+                m_concurrency.completed(System.nanoTime() - start, true);
+                for (PendingWrite write: writes) {
+                    write.m_committed.setException(e);
+                }
+                return;
+            }
+            m_breaker.succeeded();
+            m_concurrency.completed(System.nanoTime() - start, false);
+            for (PendingWrite write: writes) {
+                write.m_committed.set(null);
             }
-        });
+        }
     }
 
-    public void write(Multimap<HiveEndPoint, String> records) {
-        List<ListenableFuture<?>> tasks = new ArrayList<>();
-        for (HiveEndPoint ep: records.keySet()) {
-            tasks.add(asWriteTask(ep, records.get(ep)));
+    /**
+     * Submits records for writing, where they may be coalesced with records
+     * for the same end point submitted by other decoders
+     *
+     * @return a future that completes when the given records are committed
+     */
+    ListenableFuture<?> enqueue(HiveEndPoint endPoint, Collection<byte[]> records) {
+        if (m_coalescer != null) {
+            return m_coalescer.add(endPoint, records);
         }
-        try {
-            Futures.allAsList(tasks).get();
-        } catch (InterruptedException e) {
-            String msg = "Interrupted write for message %s";
-            LOG.error(msg, e, records);
-            throw new HiveExportException(msg, e, records);
+        return asWriteTask(endPoint, records);
+    }
+
+    /**
+     * Writes the given records, and waits for all their end point writes to
+     * complete, even when some fail, as they all read from the given arena
+     *
+     * @throws HiveExportException with the first failure, if any write fails
+     * @throws InterruptedException if interrupted while waiting, in which case
+     *    writes may still be reading from the given arena
+     */
+    public void write(RecordArena records) throws InterruptedException {
+        List<ListenableFuture<?>> tasks = new ArrayList<>(records.getEndPointCount());
+        for (RecordArena.Records epRecords: records) {
+            if (epRecords.isEmpty()) continue;
+            tasks.add(enqueue(epRecords.getEndPoint(), epRecords));
+        }
+        ExecutionException failure = null;
+        for (ListenableFuture<?> task: tasks) try {
+            task.get();
         } catch (ExecutionException e) {
-            if (e.getCause() instanceof HiveExportException) {
-                throw (HiveExportException)e.getCause();
+            if (failure == null) failure = e;
+        }
+        if (failure == null) return;
+        if (failure.getCause() instanceof HiveExportException) {
+            throw (HiveExportException)failure.getCause();
+        }
+        String msg = "Fault on write for message %s";
+        LOG.error(msg, failure, records);
+        throw new HiveExportException(msg, failure, records);
+    }
+
+    public Pipeline pipeline(int maxInFlight) {
+        return new Pipeline(maxInFlight);
+    }
+
+    /**
+     * Writes the records of a block in chunks, while the block is still being
+     * decoded. At most a given number of chunk writes may be in flight, and
+     * submitting past that waits for the oldest one to complete. Chunks of
+     * the same end point are committed in submission order, as each end point
+     * has its own {@link EndPointWrites} queue, which is drained by at most one
+     * writer at a time, and which commits its pending writes in the order they
+     * were added. Chunks of different end points are written in parallel. A
+     * block is only complete, and thus may be acknowledged, once all its chunks
+     * are committed.
+     */
+    public class Pipeline {
+        private final ArrayDeque<ListenableFuture<?>> m_inFlight = new ArrayDeque<>();
+        private final int m_maxInFlight;
+
+        private Pipeline(int maxInFlight) {
+            Preconditions.checkArgument(maxInFlight > 0, "max in flight writes must be positive");
+            m_maxInFlight = maxInFlight;
+        }
+
+        public void submit(HiveEndPoint endPoint, Collection<byte[]> records) throws InterruptedException {
+            while (m_inFlight.size() >= m_maxInFlight) {
+                awaitOldest();
+            }
+            m_inFlight.add(enqueue(endPoint, records));
+        }
+
+        /**
+         * Writes the remainder of a block, and waits for all its writes to complete
+         *
+         * @throws InterruptedException if interrupted while waiting, in which
+         *    case writes may still be reading from the given remainder
+         */
+        public void complete(RecordArena remainder) throws InterruptedException {
+            for (RecordArena.Records epRecords: remainder) {
+                if (epRecords.isEmpty()) continue;
+                m_inFlight.add(enqueue(epRecords.getEndPoint(), epRecords));
+            }
+            while (!m_inFlight.isEmpty()) {
+                awaitOldest();
+            }
+        }
+
+        /**
+         * Waits out any in flight writes of a block that is going to be
+         * restarted, disregarding their outcome
+         */
+        public void discard() {
+            while (!m_inFlight.isEmpty()) try {
+                m_inFlight.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                m_inFlight.clear();
+            } catch (ExecutionException ignoreIt) {
+            }
+        }
+
+        public int getInFlightCount() {
+            return m_inFlight.size();
+        }
+
+        /**
+         * Waits for the oldest in flight write. When interrupted, the in flight
+         * writes are let go without waiting for them
+         */
+        private void awaitOldest() throws InterruptedException {
+            try {
+                m_inFlight.peek().get();
+                m_inFlight.poll();
+            } catch (InterruptedException e) {
+                m_inFlight.clear();
+                throw e;
+            } catch (ExecutionException e) {
+                discard();
+                if (e.getCause() instanceof HiveExportException) {
+                    throw (HiveExportException)e.getCause();
+                }
+                String msg = "Fault on pipelined write";
+                LOG.error(msg, e);
+                throw new HiveExportException(msg, e);
+            }
+        }
+    }
+
+    /**
+     * @return the current number of end points that may be committing at the same time
+     */
+    public int getConcurrentWriters() {
+        return m_concurrency.getLimit();
+    }
+
+    /**
+     * @return the number of end points with pending writes that are waiting for a writer
+     */
+    public int getWriteQueueDepth() {
+        return m_concurrency.getQueueDepth();
+    }
+
+    /**
+     * @return the budget that bounds decoded records held in memory across
+     *    all decoders, or null if they are not bounded
+     */
+    MemoryBudget getMemoryBudget() {
+        return m_budget;
+    }
+
+    /**
+     * @return the bytes of decoded records reserved against the memory budget
+     */
+    public long getMemoryInUse() {
+        return m_budget != null ? m_budget.getUsed() : 0L;
+    }
+
+    /**
+     * @return the number of end points that have a write queue
+     */
+    public int getEndPointQueueCount() {
+        return m_writes.size();
+    }
+
+    /**
+     * @return the circuit breaker state of the end points whose circuit is not closed
+     */
+    public Map<HiveEndPoint, String> getCircuitStates() {
+        ImmutableMap.Builder<HiveEndPoint, String> states = ImmutableMap.builder();
+        for (EndPointWrites writes: m_writes.values()) {
+            CircuitBreaker.State state = writes.m_breaker.getState();
+            if (state != CircuitBreaker.State.CLOSED) {
+                states.put(writes.m_endPoint, state.name());
             }
-            String msg = "Fault on write for message %s";
-            LOG.error(msg, e, records);
-            throw new HiveExportException(msg, e, records);
         }
+        return states.build();
     }
 
     public void nudge() {
@@ -0,0 +1,214 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json_voltpatches.JSONException;
+
+/**
+ * Static helpers that write JSON tokens straight into a {@link RecordBuffer}.
+ * Their output is byte for byte the same as the one produced by the
+ * {@link org.json_voltpatches.JSONWriter} for the same values.
+ */
+public final class JsonEncoding {
+    final static byte [] NULL = "null".getBytes(StandardCharsets.UTF_8);
+
+    private JsonEncoding() {
+    }
+
+    /**
+     * Pre-encodes a field key, including its leading comma separator and
+     * trailing colon, i.e. <code>,"key":</code>
+     */
+    public static byte [] encodeKey(String key) {
+        RecordBuffer buffer = new RecordBuffer(key.length() + 8);
+        buffer.append(',');
+        appendQuoted(buffer, key);
+        buffer.append(':');
+        return buffer.toByteArray();
+    }
+
+    public static void appendNull(RecordBuffer to) {
+        to.append(NULL);
+    }
+
+    public static void appendQuoted(RecordBuffer to, CharSequence s) {
+        if (s == null) {
+            to.append(NULL);
+            return;
+        }
+        to.append('"');
+        final int length = s.length();
+        char b, c = 0;
+        for (int i = 0; i < length; ++i) {
+            b = c;
+            c = s.charAt(i);
+            switch (c) {
+            case '\\':
+            case '"':
+                to.append('\\').append(c);
+                break;
+            case '/':
+                if (b == '<') {
+                    to.append('\\');
+                }
+                to.append(c);
+                break;
+            case '\b':
+                to.append('\\').append('b');
+                break;
+            case '\t':
+                to.append('\\').append('t');
+                break;
+            case '\n':
+                to.append('\\').append('n');
+                break;
+            case '\f':
+                to.append('\\').append('f');
+                break;
+            case '\r':
+                to.append('\\').append('r');
+                break;
+            default:
+                if (c < ' ' || (c >= 0x80 && c < 0xa0)
+                        || (c >= 0x2000 && c < 0x2100)) {
+                    appendUnicodeEscape(to, c);
+                } else if (c < 0x80) {
+                    to.append(c);
+                } else if (Character.isHighSurrogate(c)
+                        && i + 1 < length && Character.isLowSurrogate(s.charAt(i+1))) {
+                    c = s.charAt(++i);
+                    to.appendCodePoint(Character.toCodePoint(s.charAt(i-1), c));
+                } else {
+                    to.appendUtf8(c);
+                }
+            }
+        }
+        to.append('"');
+    }
+
+    /**
+     * Quotes a UTF-8 encoded string straight from its bytes, the same way as
+     * {@link #appendQuoted(RecordBuffer, CharSequence)} does for the decoded string
+     *
+     * @return false, leaving the buffer untouched, if the given bytes are not
+     *    well formed UTF-8, and thus must be decoded with replacements first
+     */
+    public static boolean appendQuoted(RecordBuffer to, byte [] utf8, int offset, int length) {
+        final int mark = to.length();
+        final int end = offset + length;
+        to.append('"');
+        int b, c = 0;
+        for (int i = offset; i < end;) {
+            b = c;
+            c = utf8[i];
+            if (c >= 0) {
+                ++i;
+                switch (c) {
+                case '\\':
+                case '"':
+                    to.append('\\').append((byte)c);
+                    break;
+                case '/':
+                    if (b == '<') {
+                        to.append('\\');
+                    }
+                    to.append((byte)c);
+                    break;
+                case '\b':
+                    to.append('\\').append('b');
+                    break;
+                case '\t':
+                    to.append('\\').append('t');
+                    break;
+                case '\n':
+                    to.append('\\').append('n');
+                    break;
+                case '\f':
+                    to.append('\\').append('f');
+                    break;
+                case '\r':
+                    to.append('\\').append('r');
+                    break;
+                default:
+                    if (c < ' ') {
+                        appendUnicodeEscape(to, (char)c);
+                    } else {
+                        to.append((byte)c);
+                    }
+                }
+                continue;
+            }
+            final int n = RecordBuffer.utf8SequenceLength(utf8, i, end);
+            if (n < 0) {
+                to.setLength(mark);
+                return false;
+            }
+            c = RecordBuffer.utf8CodePoint(utf8, i, n);
+            if ((c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100)) {
+                appendUnicodeEscape(to, (char)c);
+            } else {
+                to.append(utf8, i, n);
+            }
+            i += n;
+        }
+        to.append('"');
+        return true;
+    }
+
+    private static void appendUnicodeEscape(RecordBuffer to, char c) {
+        to.append('\\').append('u');
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            to.append(RecordBuffer.HEX_DIGITS[(c >> shift) & 0xf]);
+        }
+    }
+
+    public static void appendDouble(RecordBuffer to, double v) throws JSONException {
+        if (Double.isInfinite(v) || Double.isNaN(v)) {
+            throw new JSONException("JSON does not allow non-finite numbers.");
+        }
+        appendNumber(to, Double.toString(v));
+    }
+
+    /**
+     * Appends the string rendition of a number, trimming trailing decimal
+     * zeros like {@link org.json_voltpatches.JSONObject#numberToString} does
+     */
+    public static void appendNumber(RecordBuffer to, String number) {
+        int end = number.length();
+        if (number.indexOf('.') > 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+            while (end > 0 && number.charAt(end-1) == '0') {
+                --end;
+            }
+            if (end > 0 && number.charAt(end-1) == '.') {
+                --end;
+            }
+        }
+        for (int i = 0; i < end; ++i) {
+            to.append(number.charAt(i));
+        }
+    }
+}
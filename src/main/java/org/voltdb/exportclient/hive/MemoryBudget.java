@@ -0,0 +1,195 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google_voltpatches.common.base.Preconditions;
+
+/**
+ * A byte count budget shared by all the Hive export decoders, that bounds
+ * how much decoded record data is held in memory until it is committed.
+ * Decoders reserve their share of it as their record arenas fill up, and
+ * release it once their block is committed. Each decoder tracks what it
+ * holds through its own {@link Reservation}. A reservation that cannot be
+ * fulfilled waits for other decoders to release theirs, up to a given
+ * time, after which the reserving decoder is expected to shed its block
+ * and have it redelivered later. A decoder that holds everything reserved
+ * is always granted more, so that an oversized block is delayed but never
+ * refused outright. A decoder that would wait while every other holder is
+ * also waiting sheds right away, as none of them could otherwise proceed.
+ * The budget is disabled unless the HIVE_MEMORY_BUDGET_MB property is set.
+ */
+class MemoryBudget {
+    private final static HiveExportLogger LOG = new HiveExportLogger();
+
+    final static int BUDGET_MB = Integer.getInteger("HIVE_MEMORY_BUDGET_MB", 0);
+    final static int WAIT_MS = Integer.getInteger("HIVE_MEMORY_BUDGET_WAIT_MS", 30_000);
+    final static int CHUNK_SIZE = Integer.getInteger("HIVE_MEMORY_BUDGET_CHUNK_SIZE", 256 * 1024);
+
+    private final long m_capacity;
+    // guarded by this
+    private long m_used = 0L;
+    private int m_holders = 0;
+    private int m_waitingHolders = 0;
+    private long m_peak = 0L;
+    private long m_waits = 0L;
+    private long m_sheds = 0L;
+
+    MemoryBudget(long capacity) {
+        Preconditions.checkArgument(capacity > 0, "memory budget must be positive");
+        m_capacity = capacity;
+    }
+
+    static boolean isEnabled() {
+        return BUDGET_MB > 0;
+    }
+
+    Reservation reservation() {
+        return new Reservation();
+    }
+
+    /**
+     * The share of the budget held by one decoder. It is not thread safe,
+     * as it is only used by the decoder that owns it. The decoder checks what
+     * it holds on every row, which it does against its own copy of the held
+     * byte count, so that only reserving more takes the shared budget lock
+     */
+    class Reservation {
+        // guarded by the enclosing budget
+        private long m_held = 0L;
+        // only accessed by the owning decoder
+        private long m_ownedCopy = 0L;
+
+        private Reservation() {
+        }
+
+        /**
+         * Reserves the given number of additional bytes, waiting up to the
+         * given time for them to be available
+         *
+         * @return true if reserved, or false if they did not become available in time
+         */
+        boolean reserve(long bytes, long waitMs) throws InterruptedException {
+            boolean reserved = MemoryBudget.this.reserve(this, bytes, waitMs);
+            if (reserved) {
+                m_ownedCopy += bytes;
+            }
+            return reserved;
+        }
+
+        /**
+         * Releases all the bytes held by this reservation
+         */
+        void release() {
+            if (m_ownedCopy == 0) return;
+            MemoryBudget.this.release(this);
+            m_ownedCopy = 0L;
+        }
+
+        long getHeld() {
+            return m_ownedCopy;
+        }
+    }
+
+    private boolean fits(Reservation reservation, long bytes) {
+        return reservation.m_held == m_used || m_used + bytes <= m_capacity;
+    }
+
+    private synchronized boolean reserve(Reservation reservation, long bytes, long waitMs)
+            throws InterruptedException {
+        Preconditions.checkArgument(bytes >= 0, "negative reservation");
+        if (!fits(reservation, bytes)) {
+            ++m_waits;
+            final boolean holder = reservation.m_held > 0;
+            if (holder) ++m_waitingHolders;
+            try {
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+                do {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        ++m_sheds;
+                        LOG.warn("Unable to reserve %d bytes within %d ms: %s", bytes, waitMs, this);
+                        return false;
+                    }
+                    if (holder && m_waitingHolders == m_holders) {
+                        ++m_sheds;
+                        LOG.warn("Unable to reserve %d bytes, as all holders are waiting: %s", bytes, this);
+                        return false;
+                    }
+                    wait(remaining);
+                } while (!fits(reservation, bytes));
+            } finally {
+                if (holder) --m_waitingHolders;
+            }
+        }
+        if (reservation.m_held == 0 && bytes > 0) ++m_holders;
+        reservation.m_held += bytes;
+        m_used += bytes;
+        m_peak = Math.max(m_peak, m_used);
+        return true;
+    }
+
+    private synchronized void release(Reservation reservation) {
+        if (reservation.m_held == 0) return;
+        m_used -= reservation.m_held;
+        reservation.m_held = 0L;
+        --m_holders;
+        notifyAll();
+    }
+
+    public long getCapacity() {
+        return m_capacity;
+    }
+
+    public synchronized long getUsed() {
+        return m_used;
+    }
+
+    public synchronized long getPeak() {
+        return m_peak;
+    }
+
+    /**
+     * @return the number of reservations that had to wait for bytes to be released
+     */
+    public synchronized long getWaits() {
+        return m_waits;
+    }
+
+    /**
+     * @return the number of reservations that gave up waiting
+     */
+    public synchronized long getSheds() {
+        return m_sheds;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MemoryBudget [capacity=" + m_capacity + ", used=" + m_used + ", holders=" + m_holders
+                + ", waitingHolders=" + m_waitingHolders + ", peak=" + m_peak
+                + ", waits=" + m_waits + ", sheds=" + m_sheds + "]";
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.common.type.HiveChar;
+import org.apache.hadoop.hive.common.type.HiveDecimal;
+import org.apache.hadoop.hive.common.type.HiveVarchar;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.ql.io.AcidOutputFormat;
+import org.apache.hadoop.hive.ql.io.RecordUpdater;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.BaseCharTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hive.hcatalog.streaming.ConnectionError;
+import org.apache.hive.hcatalog.streaming.HiveEndPoint;
+import org.apache.hive.hcatalog.streaming.RecordWriter;
+import org.apache.hive.hcatalog.streaming.SerializationError;
+import org.apache.hive.hcatalog.streaming.StreamingException;
+import org.apache.hive.hcatalog.streaming.StreamingIOFailure;
+import org.apache.thrift.TException;
+
+/**
+ * A {@link RecordWriter} that fills ORC structs straight from the binary
+ * rows produced by the {@link NativeRowEncoding}, bypassing the JSON SerDe
+ * altogether. Like the Hive streaming record writers, it writes each
+ * transaction batch to a randomly chosen table bucket.
+ */
+public class NativeRecordWriter implements RecordWriter {
+    private final HiveConf m_conf;
+    private final HiveEndPoint m_endPoint;
+    private final Path m_partitionPath;
+    private final int m_totalBuckets;
+    private final AcidOutputFormat<?,?> m_outf;
+    private final ObjectInspector m_inspector;
+    private final PrimitiveTypeInfo [] m_columnTypes;
+    private final Object [] m_row;
+    private final RowFiller m_filler = new RowFiller();
+    private final Random m_rand = new Random();
+
+    private RecordUpdater m_updater = null;
+
+    public NativeRecordWriter(HiveEndPoint endPoint, HiveConf conf) throws StreamingException {
+        m_endPoint = endPoint;
+        m_conf = conf;
+
+        HiveMetaStoreClient msClient = null;
+        try {
+            Table tbl = HiveEndPointFactory.tableSchemaOf(endPoint, m_conf);
+            if (endPoint.partitionVals == null || endPoint.partitionVals.isEmpty()) {
+                m_partitionPath = new Path(tbl.getSd().getLocation());
+            } else {
+                msClient = new HiveMetaStoreClient(m_conf);
+                m_partitionPath = new Path(msClient.getPartition(
+                        endPoint.database, endPoint.table, endPoint.partitionVals
+                        ).getSd().getLocation());
+            }
+            m_totalBuckets = tbl.getSd().getNumBuckets();
+            if (m_totalBuckets <= 0) {
+                throw new StreamingException("Cannot stream to table that has not been bucketed : " + endPoint);
+            }
+            m_outf = (AcidOutputFormat<?,?>)ReflectionUtils.newInstance(
+                    Class.forName(tbl.getSd().getOutputFormat()), m_conf
+                    );
+
+            List<FieldSchema> columns = tbl.getSd().getCols();
+            List<String> names = new ArrayList<>(columns.size());
+            List<ObjectInspector> inspectors = new ArrayList<>(columns.size());
+            m_columnTypes = new PrimitiveTypeInfo[columns.size()];
+            int i = 0;
+            for (FieldSchema column: columns) {
+                TypeInfo typeInfo = TypeInfoUtils.getTypeInfoFromTypeString(column.getType());
+                if (!(typeInfo instanceof PrimitiveTypeInfo)) {
+                    throw new SerializationError(
+                            "column \"" + column.getName() + "\" of non primitive type "
+                            + column.getType() + " is not supported in native ORC mode", null
+                            );
+                }
+                m_columnTypes[i++] = (PrimitiveTypeInfo)typeInfo;
+                names.add(column.getName());
+                inspectors.add(PrimitiveObjectInspectorFactory
+                        .getPrimitiveJavaObjectInspector((PrimitiveTypeInfo)typeInfo));
+            }
+            m_inspector = ObjectInspectorFactory.getStandardStructObjectInspector(names, inspectors);
+            m_row = new Object[columns.size()];
+        } catch (TException e) {
+            throw new ConnectionError(endPoint, e);
+        } catch (ClassNotFoundException e) {
+            throw new StreamingException(e.getMessage(), e);
+        } finally {
+            if (msClient != null) {
+                msClient.close();
+            }
+        }
+    }
+
+    @Override
+    public void write(long transactionId, byte[] record) throws StreamingException {
+        Arrays.fill(m_row, null);
+        try {
+            NativeRowEncoding.decode(record, m_filler);
+        } catch (RuntimeException e) {
+            throw new SerializationError("Unable to convert native row to ORC struct for " + m_endPoint, e);
+        }
+        try {
+            m_updater.insert(transactionId, m_row);
+        } catch (IOException e) {
+            throw new StreamingIOFailure("Error writing record in transaction (" + transactionId + ")", e);
+        }
+    }
+
+    @Override
+    public void flush() throws StreamingException {
+        try {
+            m_updater.flush();
+        } catch (IOException e) {
+            throw new StreamingIOFailure("Unable to flush recordUpdater", e);
+        }
+    }
+
+    @Override
+    public void clear() throws StreamingException {
+    }
+
+    @Override
+    public void newBatch(Long minTxnId, Long maxTxnID) throws StreamingException {
+        try {
+            m_updater = m_outf.getRecordUpdater(m_partitionPath,
+                    new AcidOutputFormat.Options(m_conf)
+                        .inspector(m_inspector)
+                        .bucket(m_rand.nextInt(m_totalBuckets))
+                        .minimumTransactionId(minTxnId)
+                        .maximumTransactionId(maxTxnID));
+        } catch (IOException e) {
+            throw new StreamingIOFailure("Failed creating record updater for " + m_endPoint, e);
+        }
+    }
+
+    @Override
+    public void closeBatch() throws StreamingException {
+        try {
+            m_updater.close(false);
+            m_updater = null;
+        } catch (IOException e) {
+            throw new StreamingIOFailure("Unable to close recordUpdater", e);
+        }
+    }
+
+    /**
+     * Converts decoded row fields to the java representation of their
+     * corresponding table column type
+     */
+    private final class RowFiller implements NativeRowEncoding.FieldVisitor {
+
+        private PrimitiveCategory categoryOf(int column) {
+            return m_columnTypes[column].getPrimitiveCategory();
+        }
+
+        @Override
+        public void visitNull(int column) {
+            m_row[column] = null;
+        }
+
+        @Override
+        public void visitLong(int column, long v) {
+            switch (categoryOf(column)) {
+            case BOOLEAN:   m_row[column] = v != 0; break;
+            case BYTE:      m_row[column] = (byte)v; break;
+            case SHORT:     m_row[column] = (short)v; break;
+            case INT:       m_row[column] = (int)v; break;
+            case LONG:      m_row[column] = v; break;
+            case FLOAT:     m_row[column] = (float)v; break;
+            case DOUBLE:    m_row[column] = (double)v; break;
+            case DECIMAL:   m_row[column] = HiveDecimal.create(v); break;
+            case TIMESTAMP: m_row[column] = new Timestamp(v); break;
+            case DATE:      m_row[column] = new Date(v); break;
+            default:        visitString(column, Long.toString(v));
+            }
+        }
+
+        @Override
+        public void visitDouble(int column, double v) {
+            switch (categoryOf(column)) {
+            case BOOLEAN:   m_row[column] = v != 0; break;
+            case BYTE:      m_row[column] = (byte)v; break;
+            case SHORT:     m_row[column] = (short)v; break;
+            case INT:       m_row[column] = (int)v; break;
+            case LONG:      m_row[column] = (long)v; break;
+            case FLOAT:     m_row[column] = (float)v; break;
+            case DOUBLE:    m_row[column] = v; break;
+            case DECIMAL:   m_row[column] = HiveDecimal.create(BigDecimal.valueOf(v)); break;
+            default:        visitString(column, Double.toString(v));
+            }
+        }
+
+        @Override
+        public void visitTimestamp(int column, long micros) {
+            long millis = Math.floorDiv(micros, 1000L);
+            switch (categoryOf(column)) {
+            case LONG:      m_row[column] = millis; break;
+            case DATE:      m_row[column] = new Date(millis); break;
+            case TIMESTAMP:
+            case STRING:
+            case VARCHAR:
+            case CHAR:
+                Timestamp ts = new Timestamp(millis);
+                ts.setNanos((int)Math.floorMod(micros, 1000000L) * 1000);
+                if (categoryOf(column) == PrimitiveCategory.TIMESTAMP) {
+                    m_row[column] = ts;
+                } else {
+                    visitString(column, ts.toString());
+                }
+                break;
+            default:
+                m_row[column] = null;
+            }
+        }
+
+        @Override
+        public void visitString(int column, String v) {
+            switch (categoryOf(column)) {
+            case STRING:    m_row[column] = v; break;
+            case VARCHAR:   m_row[column] = new HiveVarchar(v, ((BaseCharTypeInfo)m_columnTypes[column]).getLength()); break;
+            case CHAR:      m_row[column] = new HiveChar(v, ((BaseCharTypeInfo)m_columnTypes[column]).getLength()); break;
+            case BINARY:    m_row[column] = v.getBytes(StandardCharsets.UTF_8); break;
+            case BOOLEAN:   m_row[column] = Boolean.valueOf(v); break;
+            case DECIMAL:   m_row[column] = HiveDecimal.create(v); break;
+            case TIMESTAMP: m_row[column] = Timestamp.valueOf(v); break;
+            case DATE:      m_row[column] = Date.valueOf(v); break;
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                try {
+                    visitLong(column, Long.parseLong(v.trim()));
+                } catch (NumberFormatException e) {
+                    m_row[column] = null;
+                }
+                break;
+            case FLOAT:
+            case DOUBLE:
+                try {
+                    visitDouble(column, Double.parseDouble(v.trim()));
+                } catch (NumberFormatException e) {
+                    m_row[column] = null;
+                }
+                break;
+            default:
+                m_row[column] = null;
+            }
+        }
+
+        @Override
+        public void visitBinary(int column, byte[] v) {
+            if (categoryOf(column) == PrimitiveCategory.BINARY) {
+                m_row[column] = v;
+            } else {
+                visitString(column, new String(v, StandardCharsets.UTF_8));
+            }
+        }
+
+        @Override
+        public void visitDecimal(int column, BigDecimal v) {
+            switch (categoryOf(column)) {
+            case DECIMAL:   m_row[column] = HiveDecimal.create(v); break;
+            case STRING:
+            case VARCHAR:
+            case CHAR:      visitString(column, v.toPlainString()); break;
+            case BOOLEAN:   m_row[column] = v.signum() != 0; break;
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:      visitLong(column, v.longValue()); break;
+            default:        visitDouble(column, v.doubleValue());
+            }
+        }
+    }
+}
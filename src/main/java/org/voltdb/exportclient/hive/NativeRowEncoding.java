@@ -0,0 +1,176 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Static helpers that read and write the binary rows consumed by the
+ * {@link NativeRecordWriter}. A row is a sequence of fields, each one made of
+ * a two byte Hive column index, a one byte type tag, and a tag dependent value
+ * in big endian order. Columns that are not present in the row are null.
+ */
+public final class NativeRowEncoding {
+    final static byte NULL = 0;
+    final static byte LONG = 1;
+    final static byte DOUBLE = 2;
+    final static byte STRING = 3;
+    final static byte BINARY = 4;
+    final static byte DECIMAL = 5;
+    final static byte TIMESTAMP = 6;
+
+    private NativeRowEncoding() {
+    }
+
+    public static RecordBuffer appendNull(RecordBuffer to, int column) {
+        return to.putShort(column).append(NULL);
+    }
+
+    public static RecordBuffer appendLong(RecordBuffer to, int column, long v) {
+        return to.putShort(column).append(LONG).putLong(v);
+    }
+
+    public static RecordBuffer appendDouble(RecordBuffer to, int column, double v) {
+        return to.putShort(column).append(DOUBLE).putLong(Double.doubleToRawLongBits(v));
+    }
+
+    /**
+     * Appends a timestamp expressed in microseconds since epoch
+     */
+    public static RecordBuffer appendTimestamp(RecordBuffer to, int column, long micros) {
+        return to.putShort(column).append(TIMESTAMP).putLong(micros);
+    }
+
+    public static RecordBuffer appendString(RecordBuffer to, int column, CharSequence v) {
+        to.putShort(column).append(STRING);
+        int lengthAt = to.length();
+        to.putInt(0).appendUtf8(v);
+        to.setInt(lengthAt, to.length() - lengthAt - 4);
+        return to;
+    }
+
+    /**
+     * Appends a UTF-8 encoded string straight from its bytes
+     *
+     * @return false, leaving the buffer untouched, if the given bytes are not
+     *    well formed UTF-8, and thus must be decoded with replacements first
+     */
+    public static boolean appendString(RecordBuffer to, int column, byte [] utf8, int offset, int length) {
+        if (!RecordBuffer.isWellFormedUtf8(utf8, offset, length)) {
+            return false;
+        }
+        to.putShort(column).append(STRING).putInt(length).append(utf8, offset, length);
+        return true;
+    }
+
+    public static RecordBuffer appendBinary(RecordBuffer to, int column, byte [] v) {
+        return to.putShort(column).append(BINARY).putInt(v.length).append(v);
+    }
+
+    public static RecordBuffer appendBinary(RecordBuffer to, int column, byte [] v, int offset, int length) {
+        return to.putShort(column).append(BINARY).putInt(length).append(v, offset, length);
+    }
+
+    public static RecordBuffer appendDecimal(RecordBuffer to, int column, BigDecimal v) {
+        byte [] unscaled = v.unscaledValue().toByteArray();
+        return to.putShort(column).append(DECIMAL)
+                .putInt(v.scale()).putInt(unscaled.length).append(unscaled);
+    }
+
+    /**
+     * Receives the fields of a decoded row
+     */
+    public interface FieldVisitor {
+        void visitNull(int column);
+        void visitLong(int column, long v);
+        void visitDouble(int column, double v);
+        void visitTimestamp(int column, long micros);
+        void visitString(int column, String v);
+        void visitBinary(int column, byte [] v);
+        void visitDecimal(int column, BigDecimal v);
+    }
+
+    public static void decode(byte [] row, FieldVisitor visitor) {
+        int pos = 0;
+        while (pos < row.length) {
+            int column = ((row[pos] & 0xff) << 8) | (row[pos+1] & 0xff);
+            byte tag = row[pos+2];
+            pos += 3;
+            int length;
+            switch (tag) {
+            case NULL:
+                visitor.visitNull(column);
+                break;
+            case LONG:
+                visitor.visitLong(column, getLong(row, pos));
+                pos += 8;
+                break;
+            case DOUBLE:
+                visitor.visitDouble(column, Double.longBitsToDouble(getLong(row, pos)));
+                pos += 8;
+                break;
+            case TIMESTAMP:
+                visitor.visitTimestamp(column, getLong(row, pos));
+                pos += 8;
+                break;
+            case STRING:
+                length = getInt(row, pos);
+                visitor.visitString(column, new String(row, pos + 4, length, StandardCharsets.UTF_8));
+                pos += 4 + length;
+                break;
+            case BINARY:
+                length = getInt(row, pos);
+                byte [] bytes = new byte[length];
+                System.arraycopy(row, pos + 4, bytes, 0, length);
+                visitor.visitBinary(column, bytes);
+                pos += 4 + length;
+                break;
+            case DECIMAL:
+                int scale = getInt(row, pos);
+                length = getInt(row, pos + 4);
+                byte [] unscaled = new byte[length];
+                System.arraycopy(row, pos + 8, unscaled, 0, length);
+                visitor.visitDecimal(column, new BigDecimal(new BigInteger(unscaled), scale));
+                pos += 8 + length;
+                break;
+            default:
+                throw new HiveExportException("unknown native row field tag %d at offset %d", tag, pos - 1);
+            }
+        }
+    }
+
+    static int getInt(byte [] bytes, int pos) {
+        return ((bytes[pos] & 0xff) << 24)
+             | ((bytes[pos+1] & 0xff) << 16)
+             | ((bytes[pos+2] & 0xff) << 8)
+             |  (bytes[pos+3] & 0xff);
+    }
+
+    static long getLong(byte [] bytes, int pos) {
+        return ((long)getInt(bytes, pos) << 32) | (getInt(bytes, pos + 4) & 0xffffffffL);
+    }
+}
@@ -25,18 +25,18 @@
 package org.voltdb.exportclient.hive;
 
 import java.io.StringWriter;
-import java.text.SimpleDateFormat;
-import java.util.LinkedHashMap;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TimeZone;
 
-import org.apache.hive.hcatalog.streaming.HiveEndPoint;
 import org.json_voltpatches.JSONException;
 import org.json_voltpatches.JSONWriter;
 import org.voltdb.VoltType;
-import org.voltdb.common.Constants;
 import org.voltdb.exportclient.decode.DecodeType;
 import org.voltdb.exportclient.decode.DecodeType.SimpleVisitor;
 import org.voltdb.exportclient.decode.FieldDecoder;
@@ -44,37 +44,61 @@ import org.voltdb.exportclient.decode.RowDecoder;
 import org.voltdb.types.TimestampType;
 import org.voltdb.utils.Encoder;
 
-import com.google_voltpatches.common.collect.ImmutableMultimap;
 import com.google_voltpatches.common.base.Preconditions;
 import com.google_voltpatches.common.collect.FluentIterable;
 import com.google_voltpatches.common.collect.ImmutableList;
 
 public class PartitionedJsonDecoder
-    extends RowDecoder<ImmutableMultimap.Builder<HiveEndPoint, String>, JSONException> {
+    extends RowDecoder<RecordArena, JSONException> {
 
-    final protected SimpleDateFormat m_dateFormatter =
-            new SimpleDateFormat(Constants.ODBC_DATE_FORMAT_STRING);
+    protected final TimestampFormatter m_timestampFormatter;
     protected final String [] m_columnNames;
     protected final JsonFieldDecoder [] m_fieldDecoders;
+    protected final int [] m_fieldIndexes;
     protected final List<String> m_partitionColumns;
     protected final StringWriter m_writer;
     protected final String m_unspecifiedToken;
     protected final HiveEndPointFactory m_endPointFactory;
+    protected final boolean m_utf8Encoding;
+    protected final RecordFormat m_recordFormat;
+    protected final Map<String, Integer> m_tableColumnIndexes;
+    protected final List<String> m_projectedColumns;
+    protected final RowFilter m_rowFilter;
+    private final Decoded m_decoded;
 
     protected PartitionedJsonDecoder(List<VoltType> columnTypes,
             List<String> columnNames, List<String> partitionColumnNames,
-            int firstFieldOffset, TimeZone timeZone, String unspecifiedToken,
-            HiveEndPointFactory endPointFactory) {
+            int firstFieldOffset, TimestampFormatter timestampFormatter, String unspecifiedToken,
+            HiveEndPointFactory endPointFactory, boolean utf8Encoding,
+            List<String> tableColumnNames, List<String> projectedColumnNames,
+            RowFilter rowFilter) {
 
         super(columnTypes, columnNames, firstFieldOffset);
 
         HiveEndPointFactory.checkPartitionValues(partitionColumnNames);
-        Preconditions.checkArgument(
-                columnNames.containsAll(partitionColumnNames),
-                "partition columns %s are not in table columns %s",
-                partitionColumnNames, columnNames
-                );
+        int derivedCount = 0;
         for (String partitionColumn: partitionColumnNames) {
+            DerivedPartition derived = DerivedPartition.parse(partitionColumn);
+            if (derived != null) {
+                ++derivedCount;
+                Preconditions.checkArgument(
+                        columnNames.contains(derived.getColumn()),
+                        "partition column %s of derived partition %s is not in table columns %s",
+                        derived.getColumn(), partitionColumn, columnNames
+                        );
+                if (m_typeMap.get(derived.getColumn()) != DecodeType.TIMESTAMP) {
+                    throw new IllegalArgumentException(
+                            "derived partition \"" + partitionColumn + "\" must be on a TIMESTAMP column, "
+                            + "but it is of type " + m_typeMap.get(derived.getColumn())
+                            );
+                }
+                continue;
+            }
+            Preconditions.checkArgument(
+                    columnNames.contains(partitionColumn),
+                    "partition columns %s are not in table columns %s",
+                    partitionColumnNames, columnNames
+                    );
             if (m_typeMap.get(partitionColumn) != DecodeType.STRING) {
                 throw new IllegalArgumentException(
                         "partition column \"" + partitionColumn + "\" must be of VARCHAR type, "
@@ -88,41 +112,179 @@ public class PartitionedJsonDecoder
                 "unspecified token is null or empty"
                 );
         m_unspecifiedToken = unspecifiedToken;
-        m_dateFormatter.setTimeZone(Preconditions.checkNotNull(timeZone, "timezone is null"));
+        m_timestampFormatter = Preconditions.checkNotNull(timestampFormatter, "timestamp formatter is null");
         m_endPointFactory = Preconditions.checkNotNull(endPointFactory, "endPointFactory is null");
         m_partitionColumns = partitionColumnNames;
         m_writer = new StringWriter(4096);
+        m_recordFormat = m_endPointFactory.getRecordFormat();
+        m_utf8Encoding = utf8Encoding || m_recordFormat != RecordFormat.JSON;
+        m_rowFilter = rowFilter;
 
-        m_columnNames = new String[m_typeMap.size()];
-        m_fieldDecoders = new JsonFieldDecoder[m_typeMap.size()];
+        if (projectedColumnNames != null) {
+            for (String projected: projectedColumnNames) {
+                boolean found = false;
+                for (String columnName: columnNames) {
+                    found = found || columnName.equalsIgnoreCase(projected);
+                }
+                Preconditions.checkArgument(found,
+                        "projected column %s is not in table columns %s",
+                        projected, columnNames
+                        );
+            }
+        }
+        m_projectedColumns = projectedColumnNames;
 
+        Map<String, Integer> tableColumnIndexes = new HashMap<>();
+        if (m_recordFormat != RecordFormat.JSON) {
+            Preconditions.checkArgument(
+                    tableColumnNames != null && !tableColumnNames.isEmpty(),
+                    "table column names are required for the %s record format", m_recordFormat
+                    );
+            int i = 0;
+            for (String tableColumnName: tableColumnNames) {
+                tableColumnIndexes.put(tableColumnName.toLowerCase(), i++);
+            }
+        }
+        m_tableColumnIndexes = tableColumnIndexes;
+
+        m_columnNames = new String[m_typeMap.size()];
+        DecodeType [] decodeTypes = new DecodeType[m_typeMap.size()];
         int i = 0;
         for (Entry<String, DecodeType> e: m_typeMap.entrySet()) {
-            final String columnName = e.getKey().intern();
-            m_columnNames[i] = columnName;
-            m_fieldDecoders[i++] = e.getValue()
-                    .accept(decodingVisitor, columnName, null)
-                    ;
+            m_columnNames[i] = e.getKey().intern();
+            decodeTypes[i++] = e.getValue();
         }
+
+        if (m_recordFormat == RecordFormat.DELIMITED) {
+            /*
+             * delimited fields are laid out in table column order, after the
+             * partition columns which do not yield any field
+             */
+            int count = m_partitionColumns.size() + tableColumnNames.size();
+            m_fieldDecoders = new JsonFieldDecoder[count];
+            m_fieldIndexes = new int[count];
+            int j = 0;
+            for (i = 0; i < m_columnNames.length; ++i) {
+                if (m_partitionColumns.contains(m_columnNames[i])) {
+                    m_fieldDecoders[j] = partitionDecoder(m_columnNames[i]);
+                    m_fieldIndexes[j++] = m_firstFieldOffset + i;
+                }
+            }
+            j = addDerivedPartitionDecoders(j);
+            for (String tableColumnName: tableColumnNames) {
+                m_fieldDecoders[j] = delimitedNullDecoder;
+                m_fieldIndexes[j] = -1;
+                for (i = 0; i < m_columnNames.length; ++i) {
+                    if (m_columnNames[i].equalsIgnoreCase(tableColumnName)
+                            && isProjected(m_columnNames[i])) {
+                        m_fieldDecoders[j] = decodeTypes[i]
+                                .accept(delimitedDecodingVisitor, m_columnNames[i], null)
+                                ;
+                        m_fieldIndexes[j] = m_firstFieldOffset + i;
+                        break;
+                    }
+                }
+                ++j;
+            }
+        } else {
+            SimpleVisitor<JsonFieldDecoder, String> visitor = decodingVisitor;
+            if (m_recordFormat == RecordFormat.ORC) {
+                visitor = nativeDecodingVisitor;
+            } else if (m_utf8Encoding) {
+                visitor = utf8DecodingVisitor;
+            }
+            int count = derivedCount;
+            for (i = 0; i < m_columnNames.length; ++i) {
+                if (isProjected(m_columnNames[i])) ++count;
+            }
+            m_fieldDecoders = new JsonFieldDecoder[count];
+            m_fieldIndexes = new int[count];
+            int j = 0;
+            for (i = 0; i < m_columnNames.length; ++i) {
+                if (!isProjected(m_columnNames[i])) continue;
+                m_fieldDecoders[j] = decodeTypes[i].accept(visitor, m_columnNames[i], null);
+                m_fieldIndexes[j++] = m_firstFieldOffset + i;
+            }
+            addDerivedPartitionDecoders(j);
+        }
+        m_decoded = new Decoded();
+    }
+
+    /**
+     * Adds a partition decoder for each partition that is derived from a
+     * TIMESTAMP column, starting at the given field decoder position
+     *
+     * @return the field decoder position past the added ones
+     */
+    private int addDerivedPartitionDecoders(int j) {
+        for (String partitionColumn: m_partitionColumns) {
+            DerivedPartition derived = DerivedPartition.parse(partitionColumn);
+            if (derived == null) continue;
+            for (int i = 0; i < m_columnNames.length; ++i) {
+                if (m_columnNames[i].equals(derived.getColumn())) {
+                    m_fieldDecoders[j] = derivedPartitionDecoder(partitionColumn, derived);
+                    m_fieldIndexes[j++] = m_firstFieldOffset + i;
+                    break;
+                }
+            }
+        }
+        return j;
+    }
+
+    /**
+     * Partition columns are always decoded, as they determine the end point
+     * of their rows, even when they are not among the projected ones
+     */
+    private boolean isProjected(String columnName) {
+        if (m_projectedColumns == null || m_partitionColumns.contains(columnName)) {
+            return true;
+        }
+        for (String projected: m_projectedColumns) {
+            if (projected.equalsIgnoreCase(columnName)) return true;
+        }
+        return false;
     }
 
     @Override
-    public ImmutableMultimap.Builder<HiveEndPoint, String> decode(
-            ImmutableMultimap.Builder<HiveEndPoint, String> to, Object[] fields)
+    public RecordArena decode(RecordArena to, Object[] fields)
+            throws JSONException {
+        if (to == null) {
+            to = new RecordArena();
+        }
+        if (m_rowFilter != null && !m_rowFilter.accept(fields)) {
+            return to;
+        }
+        Decoded decodeTo = m_decoded;
+        decodeTo.begin();
+        for (int j = 0; j < m_fieldDecoders.length; ++j) {
+            final int i = m_fieldIndexes[j];
+            m_fieldDecoders[j].decode(decodeTo, i >= 0 && i < fields.length ? fields[i] : null);
+        }
+        decodeTo.end();
+        decodeTo.asEntryTo(to);
+
+        return to;
+    }
+
+    /**
+     * Decodes a row straight from its serialized form, where the field
+     * decoders read their column values in place instead of from a
+     * materialized field array
+     */
+    public RecordArena decode(RecordArena to, ExportRowReader row)
             throws JSONException {
         if (to == null) {
-            to = ImmutableMultimap.builder();
-        }
-        Decoded decodeTo = new Decoded();
-        decodeTo.stringer.object();
-        for (
-                int i = m_firstFieldOffset, j = 0;
-                i < fields.length && j < m_fieldDecoders.length;
-                ++i, ++j
-        ) {
-            m_fieldDecoders[j].decode(decodeTo,fields[i]);
-        }
-        decodeTo.stringer.endObject();
+            to = new RecordArena();
+        }
+        if (m_rowFilter != null && !m_rowFilter.accept(row)) {
+            return to;
+        }
+        Decoded decodeTo = m_decoded;
+        decodeTo.begin();
+        for (int j = 0; j < m_fieldDecoders.length; ++j) {
+            m_fieldDecoders[j].read(decodeTo, row, m_fieldIndexes[j]);
+        }
+        decodeTo.end();
         decodeTo.asEntryTo(to);
 
         return to;
@@ -132,23 +294,68 @@ public class PartitionedJsonDecoder
         return m_endPointFactory;
     }
 
+    /**
+     * Per row decoding target. In UTF-8 encoding mode, and for binary record
+     * formats, the record is written straight into a reused {@link RecordBuffer},
+     * otherwise it goes through a {@link JSONWriter}
+     */
     private class Decoded {
-        private final Map<String, String> partitions = new LinkedHashMap<>();
-        private final JSONWriter stringer = new JSONWriter(m_writer);
+        private final HiveEndPointFactory.Lookup partitions =
+                m_endPointFactory.lookup(m_partitionColumns.size());
+        private final RecordBuffer buffer = new RecordBuffer(4096);
+        private JSONWriter stringer;
+        private boolean first;
 
-        private Decoded() {
-            for (String column: m_partitionColumns) {
-                partitions.put(column, m_unspecifiedToken);
+        private void begin() throws JSONException {
+            partitions.fill(m_unspecifiedToken);
+            if (m_recordFormat != RecordFormat.JSON) {
+                buffer.reset();
+                first = true;
+            } else if (m_utf8Encoding) {
+                buffer.reset().append('{');
+                first = true;
+            } else {
+                stringer = new JSONWriter(m_writer);
+                stringer.object();
             }
         }
 
-        private void asEntryTo(ImmutableMultimap.Builder<HiveEndPoint, String> builder) {
-            String json = m_writer.toString();
-            List<String> partitionValues = ImmutableList.copyOf(partitions.values());
-            builder.put(getEndPointFactory().endPointFor(partitionValues), json);
+        private void end() throws JSONException {
+            if (m_recordFormat != RecordFormat.JSON) {
+                return;
+            } else if (m_utf8Encoding) {
+                buffer.append('}');
+            } else {
+                stringer.endObject();
+            }
+        }
 
-            partitions.clear();
-            m_writer.getBuffer().setLength(0);
+        private RecordBuffer key(byte [] encodedKey) {
+            if (first) {
+                first = false;
+                return buffer.append(encodedKey, 1, encodedKey.length - 1);
+            }
+            return buffer.append(encodedKey);
+        }
+
+        private RecordBuffer field() {
+            if (first) {
+                first = false;
+                return buffer;
+            }
+            return buffer.append(DelimitedEncoding.SEPARATOR);
+        }
+
+        private void asEntryTo(RecordArena arena) {
+            byte [] record;
+            if (m_utf8Encoding) {
+                record = buffer.toByteArray();
+            } else {
+                record = m_writer.toString().getBytes(StandardCharsets.UTF_8);
+                m_writer.getBuffer().setLength(0);
+                stringer = null;
+            }
+            arena.add(partitions.endPoint(), record);
         }
     }
 
@@ -158,6 +365,23 @@ public class PartitionedJsonDecoder
         JsonFieldDecoder(String fieldName) {
             m_fieldName = fieldName;
         }
+
+        /**
+         * Decodes the given column straight from the serialized row. Decoders
+         * that do not override it are given the column value as an object
+         */
+        void read(Decoded to, ExportRowReader row, int column) throws JSONException {
+            decode(to, row.getObject(column));
+        }
+    }
+
+    static abstract class Utf8FieldDecoder extends JsonFieldDecoder {
+        protected final byte [] m_encodedKey;
+
+        Utf8FieldDecoder(String fieldName) {
+            super(fieldName);
+            m_encodedKey = JsonEncoding.encodeKey(fieldName);
+        }
     }
 
     final SimpleVisitor<JsonFieldDecoder, String> decodingVisitor =
@@ -206,7 +430,7 @@ public class PartitionedJsonDecoder
                     String formatted = null;
                     if (v != null) {
                         TimestampType ts = (TimestampType)v;
-                        formatted = m_dateFormatter.format(ts.asApproximateJavaDate());
+                        formatted = m_timestampFormatter.format(ts.getTime());
                     }
                     to.stringer.key(m_fieldName).value(formatted);
                 }
@@ -216,16 +440,7 @@ public class PartitionedJsonDecoder
         @Override
         public JsonFieldDecoder visitString(String p, Object v) {
             if (m_partitionColumns.contains(p)) {
-                return new JsonFieldDecoder(p) {
-                    @Override
-                    public final void decode(Decoded to, Object v) throws JSONException {
-                        String value = (String)v;
-                        if (!HiveEndPointFactory.validPartitionValue.apply(value)) {
-                            value = m_unspecifiedToken;
-                        }
-                        to.partitions.put(m_fieldName, value);
-                    }
-                };
+                return partitionDecoder(p);
             } else {
                 return defaultDecoder(p);
             }
@@ -252,6 +467,568 @@ public class PartitionedJsonDecoder
         }
     };
 
+    final SimpleVisitor<JsonFieldDecoder, String> utf8DecodingVisitor =
+            new SimpleVisitor<JsonFieldDecoder, String>() {
+
+        JsonFieldDecoder integralDecoder(String p) {
+            return new Utf8FieldDecoder(p) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    RecordBuffer buffer = to.key(m_encodedKey);
+                    if (v == null) {
+                        JsonEncoding.appendNull(buffer);
+                    } else {
+                        buffer.appendLong(((Number)v).longValue());
+                    }
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) {
+                    RecordBuffer buffer = to.key(m_encodedKey);
+                    if (row.isNull(column)) {
+                        JsonEncoding.appendNull(buffer);
+                    } else {
+                        buffer.appendLong(row.getLong(column));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitTinyInt(String p, Object v) {
+            return integralDecoder(p);
+        }
+
+        @Override
+        public JsonFieldDecoder visitSmallInt(String p, Object v) {
+            return integralDecoder(p);
+        }
+
+        @Override
+        public JsonFieldDecoder visitInteger(String p, Object v) {
+            return integralDecoder(p);
+        }
+
+        @Override
+        public JsonFieldDecoder visitBigInt(String p, Object v) {
+            return integralDecoder(p);
+        }
+
+        @Override
+        public JsonFieldDecoder visitFloat(String p, Object v) {
+            return new Utf8FieldDecoder(p) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    RecordBuffer buffer = to.key(m_encodedKey);
+                    if (v == null) {
+                        JsonEncoding.appendNull(buffer);
+                    } else {
+                        JsonEncoding.appendDouble(buffer, ((Number)v).doubleValue());
+                    }
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) throws JSONException {
+                    RecordBuffer buffer = to.key(m_encodedKey);
+                    if (row.isNull(column)) {
+                        JsonEncoding.appendNull(buffer);
+                    } else {
+                        JsonEncoding.appendDouble(buffer, row.getDouble(column));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitTimestamp(String p, Object v) {
+            return new Utf8FieldDecoder(p) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    RecordBuffer buffer = to.key(m_encodedKey);
+                    if (v == null) {
+                        JsonEncoding.appendNull(buffer);
+                    } else {
+                        TimestampType ts = (TimestampType)v;
+                        buffer.append('"');
+                        m_timestampFormatter.appendTo(buffer, ts.getTime()).append('"');
+                    }
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) {
+                    RecordBuffer buffer = to.key(m_encodedKey);
+                    if (row.isNull(column)) {
+                        JsonEncoding.appendNull(buffer);
+                    } else {
+                        buffer.append('"');
+                        m_timestampFormatter.appendTo(buffer, row.getTimestamp(column)).append('"');
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitString(String p, Object v) {
+            if (m_partitionColumns.contains(p)) {
+                return partitionDecoder(p);
+            }
+            return new Utf8FieldDecoder(p) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    JsonEncoding.appendQuoted(to.key(m_encodedKey), (String)v);
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) {
+                    RecordBuffer buffer = to.key(m_encodedKey);
+                    if (row.isNull(column)) {
+                        JsonEncoding.appendNull(buffer);
+                    } else if (!JsonEncoding.appendQuoted(
+                            buffer, row.array(), row.offset(column), row.length(column))) {
+                        JsonEncoding.appendQuoted(buffer, row.getString(column));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitVarBinary(String p, Object v) {
+            return new Utf8FieldDecoder(p) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    RecordBuffer buffer = to.key(m_encodedKey);
+                    if (v == null) {
+                        JsonEncoding.appendNull(buffer);
+                    } else {
+                        JsonEncoding.appendQuoted(buffer, Encoder.base64Encode((byte[])v));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitDecimal(String p, Object v) {
+            return new Utf8FieldDecoder(p) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    RecordBuffer buffer = to.key(m_encodedKey);
+                    if (v == null) {
+                        JsonEncoding.appendNull(buffer);
+                    } else {
+                        JsonEncoding.appendNumber(buffer, ((BigDecimal)v).toString());
+                    }
+                }
+            };
+        }
+    };
+
+    static abstract class NativeFieldDecoder extends JsonFieldDecoder {
+        protected final int m_column;
+
+        NativeFieldDecoder(String fieldName, int column) {
+            super(fieldName);
+            m_column = column;
+        }
+    }
+
+    final static JsonFieldDecoder skippingDecoder = new JsonFieldDecoder("") {
+        @Override
+        public final void decode(Decoded to, Object v) throws JSONException {
+        }
+
+        @Override
+        final void read(Decoded to, ExportRowReader row, int column) {
+        }
+    };
+
+    /*
+     * Native row fields are tagged by the index of their table column, and
+     * null values are simply left out
+     */
+    final SimpleVisitor<JsonFieldDecoder, String> nativeDecodingVisitor =
+            new SimpleVisitor<JsonFieldDecoder, String>() {
+
+        Integer columnOf(String p) {
+            return m_tableColumnIndexes.get(p.toLowerCase());
+        }
+
+        JsonFieldDecoder integralDecoder(String p) {
+            Integer column = columnOf(p);
+            if (column == null) return skippingDecoder;
+            return new NativeFieldDecoder(p, column) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    if (v != null) {
+                        NativeRowEncoding.appendLong(to.buffer, m_column, ((Number)v).longValue());
+                    }
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) {
+                    if (!row.isNull(column)) {
+                        NativeRowEncoding.appendLong(to.buffer, m_column, row.getLong(column));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitTinyInt(String p, Object v) {
+            return integralDecoder(p);
+        }
+
+        @Override
+        public JsonFieldDecoder visitSmallInt(String p, Object v) {
+            return integralDecoder(p);
+        }
+
+        @Override
+        public JsonFieldDecoder visitInteger(String p, Object v) {
+            return integralDecoder(p);
+        }
+
+        @Override
+        public JsonFieldDecoder visitBigInt(String p, Object v) {
+            return integralDecoder(p);
+        }
+
+        @Override
+        public JsonFieldDecoder visitFloat(String p, Object v) {
+            Integer column = columnOf(p);
+            if (column == null) return skippingDecoder;
+            return new NativeFieldDecoder(p, column) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    if (v != null) {
+                        NativeRowEncoding.appendDouble(to.buffer, m_column, ((Number)v).doubleValue());
+                    }
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) {
+                    if (!row.isNull(column)) {
+                        NativeRowEncoding.appendDouble(to.buffer, m_column, row.getDouble(column));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitTimestamp(String p, Object v) {
+            Integer column = columnOf(p);
+            if (column == null) return skippingDecoder;
+            return new NativeFieldDecoder(p, column) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    if (v != null) {
+                        long micros = m_timestampFormatter.toDefaultZone(((TimestampType)v).getTime());
+                        NativeRowEncoding.appendTimestamp(to.buffer, m_column, micros);
+                    }
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) {
+                    if (!row.isNull(column)) {
+                        long micros = m_timestampFormatter.toDefaultZone(row.getTimestamp(column));
+                        NativeRowEncoding.appendTimestamp(to.buffer, m_column, micros);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitString(String p, Object v) {
+            if (m_partitionColumns.contains(p)) {
+                return partitionDecoder(p);
+            }
+            Integer column = columnOf(p);
+            if (column == null) return skippingDecoder;
+            return new NativeFieldDecoder(p, column) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    if (v != null) {
+                        NativeRowEncoding.appendString(to.buffer, m_column, (String)v);
+                    }
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) {
+                    if (!row.isNull(column) && !NativeRowEncoding.appendString(
+                            to.buffer, m_column, row.array(), row.offset(column), row.length(column))) {
+                        NativeRowEncoding.appendString(to.buffer, m_column, row.getString(column));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitVarBinary(String p, Object v) {
+            Integer column = columnOf(p);
+            if (column == null) return skippingDecoder;
+            return new NativeFieldDecoder(p, column) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    if (v != null) {
+                        NativeRowEncoding.appendBinary(to.buffer, m_column, (byte[])v);
+                    }
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) {
+                    if (!row.isNull(column)) {
+                        NativeRowEncoding.appendBinary(
+                                to.buffer, m_column, row.array(), row.offset(column), row.length(column));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitDecimal(String p, Object v) {
+            Integer column = columnOf(p);
+            if (column == null) return skippingDecoder;
+            return new NativeFieldDecoder(p, column) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    if (v != null) {
+                        NativeRowEncoding.appendDecimal(to.buffer, m_column, (BigDecimal)v);
+                    }
+                }
+            };
+        }
+    };
+
+    final static JsonFieldDecoder delimitedNullDecoder = new JsonFieldDecoder("") {
+        @Override
+        public final void decode(Decoded to, Object v) throws JSONException {
+            DelimitedEncoding.appendNull(to.field());
+        }
+
+        @Override
+        final void read(Decoded to, ExportRowReader row, int column) {
+            DelimitedEncoding.appendNull(to.field());
+        }
+    };
+
+    final SimpleVisitor<JsonFieldDecoder, String> delimitedDecodingVisitor =
+            new SimpleVisitor<JsonFieldDecoder, String>() {
+
+        JsonFieldDecoder integralDecoder(String p) {
+            return new JsonFieldDecoder(p) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    RecordBuffer buffer = to.field();
+                    if (v == null) {
+                        DelimitedEncoding.appendNull(buffer);
+                    } else {
+                        buffer.appendLong(((Number)v).longValue());
+                    }
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) {
+                    RecordBuffer buffer = to.field();
+                    if (row.isNull(column)) {
+                        DelimitedEncoding.appendNull(buffer);
+                    } else {
+                        buffer.appendLong(row.getLong(column));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitTinyInt(String p, Object v) {
+            return integralDecoder(p);
+        }
+
+        @Override
+        public JsonFieldDecoder visitSmallInt(String p, Object v) {
+            return integralDecoder(p);
+        }
+
+        @Override
+        public JsonFieldDecoder visitInteger(String p, Object v) {
+            return integralDecoder(p);
+        }
+
+        @Override
+        public JsonFieldDecoder visitBigInt(String p, Object v) {
+            return integralDecoder(p);
+        }
+
+        @Override
+        public JsonFieldDecoder visitFloat(String p, Object v) {
+            return new JsonFieldDecoder(p) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    RecordBuffer buffer = to.field();
+                    if (v == null) {
+                        DelimitedEncoding.appendNull(buffer);
+                    } else {
+                        buffer.appendAscii(Double.toString(((Number)v).doubleValue()));
+                    }
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) {
+                    RecordBuffer buffer = to.field();
+                    if (row.isNull(column)) {
+                        DelimitedEncoding.appendNull(buffer);
+                    } else {
+                        buffer.appendAscii(Double.toString(row.getDouble(column)));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitTimestamp(String p, Object v) {
+            return new JsonFieldDecoder(p) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    RecordBuffer buffer = to.field();
+                    if (v == null) {
+                        DelimitedEncoding.appendNull(buffer);
+                    } else {
+                        m_timestampFormatter.appendTo(buffer, ((TimestampType)v).getTime());
+                    }
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) {
+                    RecordBuffer buffer = to.field();
+                    if (row.isNull(column)) {
+                        DelimitedEncoding.appendNull(buffer);
+                    } else {
+                        m_timestampFormatter.appendTo(buffer, row.getTimestamp(column));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitString(String p, Object v) {
+            return new JsonFieldDecoder(p) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    DelimitedEncoding.appendEscaped(to.field(), (String)v);
+                }
+
+                @Override
+                final void read(Decoded to, ExportRowReader row, int column) {
+                    RecordBuffer buffer = to.field();
+                    if (row.isNull(column)) {
+                        DelimitedEncoding.appendNull(buffer);
+                    } else if (!DelimitedEncoding.appendEscaped(
+                            buffer, row.array(), row.offset(column), row.length(column))) {
+                        DelimitedEncoding.appendEscaped(buffer, row.getString(column));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitVarBinary(String p, Object v) {
+            return new JsonFieldDecoder(p) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    RecordBuffer buffer = to.field();
+                    if (v == null) {
+                        DelimitedEncoding.appendNull(buffer);
+                    } else {
+                        buffer.appendAscii(Encoder.base64Encode((byte[])v));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public JsonFieldDecoder visitDecimal(String p, Object v) {
+            return new JsonFieldDecoder(p) {
+                @Override
+                public final void decode(Decoded to, Object v) throws JSONException {
+                    RecordBuffer buffer = to.field();
+                    if (v == null) {
+                        DelimitedEncoding.appendNull(buffer);
+                    } else {
+                        buffer.appendAscii(((BigDecimal)v).toPlainString());
+                    }
+                }
+            };
+        }
+    };
+
+    JsonFieldDecoder partitionDecoder(String p) {
+        final int partition = m_partitionColumns.indexOf(p);
+        return new JsonFieldDecoder(p) {
+            /*
+             * partition values mostly repeat from one row to the next, so the
+             * last one read is kept along with its serialized bytes
+             */
+            private byte [] m_lastBytes = null;
+            private String m_lastValue = null;
+
+            @Override
+            public final void decode(Decoded to, Object v) throws JSONException {
+                String value = (String)v;
+                if (!HiveEndPointFactory.validPartitionValue.apply(value)) {
+                    value = m_unspecifiedToken;
+                }
+                to.partitions.set(partition, value);
+            }
+
+            @Override
+            final void read(Decoded to, ExportRowReader row, int column) throws JSONException {
+                if (row.isNull(column)) {
+                    decode(to, null);
+                    return;
+                }
+                final byte [] bytes = row.array();
+                final int offset = row.offset(column);
+                final int length = row.length(column);
+                if (m_lastBytes == null || !equalSlices(m_lastBytes, bytes, offset, length)) {
+                    m_lastBytes = Arrays.copyOfRange(bytes, offset, offset + length);
+                    m_lastValue = new String(m_lastBytes, StandardCharsets.UTF_8);
+                }
+                decode(to, m_lastValue);
+            }
+        };
+    }
+
+    JsonFieldDecoder derivedPartitionDecoder(String p, DerivedPartition derived) {
+        final int partition = m_partitionColumns.indexOf(p);
+        final DerivedPartition.Bucketer bucketer =
+                derived.bucketer(m_timestampFormatter.getTimeZone());
+        return new JsonFieldDecoder(p) {
+            @Override
+            public final void decode(Decoded to, Object v) throws JSONException {
+                String value = m_unspecifiedToken;
+                if (v != null) {
+                    value = bucketer.valueOf(((TimestampType)v).getTime());
+                }
+                to.partitions.set(partition, value);
+            }
+
+            @Override
+            final void read(Decoded to, ExportRowReader row, int column) {
+                String value = m_unspecifiedToken;
+                if (!row.isNull(column)) {
+                    value = bucketer.valueOf(row.getTimestamp(column));
+                }
+                to.partitions.set(partition, value);
+            }
+        };
+    }
+
+    private static boolean equalSlices(byte [] a, byte [] b, int offset, int length) {
+        if (a.length != length) return false;
+        for (int i = 0; i < length; ++i) {
+            if (a[i] != b[offset + i]) return false;
+        }
+        return true;
+    }
+
     public static Builder builder() {
         return new Builder();
     }
@@ -259,9 +1036,14 @@ public class PartitionedJsonDecoder
     public static class Builder extends RowDecoder.Builder {
         protected boolean m_camelCaseFieldNames = true;
         protected TimeZone m_timeZone = TimeZone.getDefault();
+        protected TimestampFormatter m_timestampFormatter = null;
         protected String m_unspecifiedToken = "__VoltDB_unspecified__";
         protected List<String> m_partitionColumnNames = ImmutableList.of();
         protected HiveEndPointFactory m_endPointFactory = null;
+        protected boolean m_utf8Encoding = true;
+        protected List<String> m_tableColumnNames = null;
+        protected List<String> m_projectedColumnNames = null;
+        protected RowFilter m_rowFilter = null;
 
         public Builder camelCaseFieldNames(boolean doit) {
             m_camelCaseFieldNames = doit;
@@ -275,6 +1057,11 @@ public class PartitionedJsonDecoder
             return this;
         }
 
+        public Builder timestampFormatter(TimestampFormatter timestampFormatter) {
+            m_timestampFormatter = timestampFormatter;
+            return this;
+        }
+
         public Builder partitionColumnNames(List<String> partitionColumnNames) {
             if (partitionColumnNames != null) {
                 m_partitionColumnNames = ImmutableList.copyOf(partitionColumnNames);
@@ -294,6 +1081,30 @@ public class PartitionedJsonDecoder
             return this;
         }
 
+        public Builder utf8Encoding(boolean doit) {
+            m_utf8Encoding = doit;
+            return this;
+        }
+
+        public Builder projectedColumnNames(List<String> projectedColumnNames) {
+            if (projectedColumnNames != null && !projectedColumnNames.isEmpty()) {
+                m_projectedColumnNames = ImmutableList.copyOf(projectedColumnNames);
+            }
+            return this;
+        }
+
+        public Builder rowFilter(RowFilter rowFilter) {
+            m_rowFilter = rowFilter;
+            return this;
+        }
+
+        public Builder tableColumnNames(List<String> tableColumnNames) {
+            if (tableColumnNames != null) {
+                m_tableColumnNames = ImmutableList.copyOf(tableColumnNames);
+            }
+            return this;
+        }
+
         public PartitionedJsonDecoder build() {
             List<String> columnNames = m_columnNames;
             List<String> partitionColumnNames = m_partitionColumnNames;
@@ -301,14 +1112,27 @@ public class PartitionedJsonDecoder
                 columnNames = FluentIterable.from(columnNames)
                       .transform(camelCaseNameLowerFirst)
                       .toList();
-                partitionColumnNames = FluentIterable.from(partitionColumnNames)
-                        .transform(camelCaseNameLowerFirst)
-                        .toList();
+                ImmutableList.Builder<String> camelCased = ImmutableList.builder();
+                for (String partitionColumn: partitionColumnNames) {
+                    DerivedPartition derived = DerivedPartition.parse(partitionColumn);
+                    if (derived == null) {
+                        camelCased.add(camelCaseNameLowerFirst.apply(partitionColumn));
+                    } else {
+                        camelCased.add(derived.getGranularity().name().toLowerCase()
+                                + "(" + camelCaseNameLowerFirst.apply(derived.getColumn()) + ")");
+                    }
+                }
+                partitionColumnNames = camelCased.build();
+            }
+            TimestampFormatter timestampFormatter = m_timestampFormatter;
+            if (timestampFormatter == null) {
+                timestampFormatter = new TimestampFormatter(m_timeZone);
             }
             return new PartitionedJsonDecoder(
                     m_columnTypes, columnNames, partitionColumnNames,
-                    m_firstFieldOffset, m_timeZone, m_unspecifiedToken,
-                    m_endPointFactory);
+                    m_firstFieldOffset, timestampFormatter, m_unspecifiedToken,
+                    m_endPointFactory, m_utf8Encoding, m_tableColumnNames,
+                    m_projectedColumnNames, m_rowFilter);
         }
     }
 
@@ -335,6 +1159,11 @@ public class PartitionedJsonDecoder
             return this;
         }
 
+        public DelegateBuilder timestampFormatter(TimestampFormatter timestampFormatter) {
+            m_partitionedJsonBuilderDelegate.timestampFormatter(timestampFormatter);
+            return this;
+        }
+
         public DelegateBuilder partitionColumnNames(List<String> partitionColumnNames) {
             m_partitionedJsonBuilderDelegate.partitionColumnNames(partitionColumnNames);
             return this;
@@ -350,6 +1179,26 @@ public class PartitionedJsonDecoder
             return this;
         }
 
+        public DelegateBuilder utf8Encoding(boolean doit) {
+            m_partitionedJsonBuilderDelegate.utf8Encoding(doit);
+            return this;
+        }
+
+        public DelegateBuilder projectedColumnNames(List<String> projectedColumnNames) {
+            m_partitionedJsonBuilderDelegate.projectedColumnNames(projectedColumnNames);
+            return this;
+        }
+
+        public DelegateBuilder rowFilter(RowFilter rowFilter) {
+            m_partitionedJsonBuilderDelegate.rowFilter(rowFilter);
+            return this;
+        }
+
+        public DelegateBuilder tableColumnNames(List<String> tableColumnNames) {
+            m_partitionedJsonBuilderDelegate.tableColumnNames(tableColumnNames);
+            return this;
+        }
+
         @Override
         protected <TT extends RowDecoder.Builder> TT getDelegateAs(Class<TT> clazz) {
             return clazz.cast(m_partitionedJsonBuilderDelegate);
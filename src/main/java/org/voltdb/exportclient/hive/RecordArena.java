@@ -0,0 +1,213 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.apache.hive.hcatalog.streaming.HiveEndPoint;
+
+import com.google_voltpatches.common.base.Preconditions;
+import com.google_voltpatches.common.collect.ImmutableList;
+
+/**
+ * Collects the records of an export block by Hive end point. Unlike a
+ * multimap built anew for each block, an arena is reset and reused from
+ * one block to the next: each end point keeps its record array, which is
+ * thus already sized from the previous blocks, and end points that stop
+ * receiving records are eventually dropped. An arena is owned by a single
+ * decoder, and its contents are only valid until it is reset.
+ */
+public class RecordArena implements Iterable<RecordArena.Records> {
+    final static int INITIAL_CAPACITY = 64;
+    final static int IDLE_RESETS = Integer.getInteger("HIVE_ARENA_IDLE_RESETS", 16);
+
+    private final Map<HiveEndPoint, Records> m_byEndPoint = new HashMap<>();
+    private final List<Records> m_active = new ArrayList<>();
+    private Records m_last = null;
+    private int m_size = 0;
+    private long m_bytes = 0L;
+
+    /**
+     * The records of one end point. It is a list view over the arena
+     * record array, that is handed to the sink as is
+     */
+    public final static class Records extends AbstractList<byte[]> implements RandomAccess {
+        private final HiveEndPoint m_endPoint;
+        private byte [][] m_records = new byte[INITIAL_CAPACITY][];
+        private int m_size = 0;
+        private int m_highWaterMark = 0;
+        private int m_idleResets = 0;
+        private boolean m_listed = false;
+
+        Records(HiveEndPoint endPoint) {
+            m_endPoint = endPoint;
+        }
+
+        public HiveEndPoint getEndPoint() {
+            return m_endPoint;
+        }
+
+        void append(byte [] record) {
+            if (m_size == m_records.length) {
+                m_records = Arrays.copyOf(m_records, m_size << 1);
+            }
+            m_records[m_size++] = record;
+        }
+
+        /**
+         * Clears the record references, and trims the record array when it
+         * is a lot larger than what recent blocks needed
+         */
+        void reset() {
+            Arrays.fill(m_records, 0, m_size, null);
+            m_highWaterMark = Math.max(m_highWaterMark >> 1, m_size);
+            m_idleResets = m_size == 0 && !m_listed ? m_idleResets + 1 : 0;
+            m_size = 0;
+            m_listed = false;
+            int fitting = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(m_highWaterMark) << 1);
+            if (m_records.length > fitting << 2) {
+                m_records = new byte[fitting][];
+            }
+        }
+
+        @Override
+        public byte[] get(int index) {
+            Preconditions.checkElementIndex(index, m_size);
+            return m_records[index];
+        }
+
+        @Override
+        public int size() {
+            return m_size;
+        }
+
+        @Override
+        public String toString() {
+            return "Records [endPoint=" + m_endPoint + ", size=" + m_size + "]";
+        }
+    }
+
+    public void add(HiveEndPoint endPoint, byte [] record) {
+        Records records = m_last;
+        if (records == null || records.m_endPoint != endPoint) {
+            records = m_byEndPoint.get(endPoint);
+            if (records == null) {
+                records = new Records(endPoint);
+                m_byEndPoint.put(endPoint, records);
+            }
+            if (!records.m_listed) {
+                records.m_listed = true;
+                m_active.add(records);
+            }
+            m_last = records;
+        }
+        records.append(record);
+        ++m_size;
+        m_bytes += record.length;
+    }
+
+    /**
+     * @return the end point records that were last added to, or null if
+     *    none were added since the last reset
+     */
+    public Records last() {
+        return m_last;
+    }
+
+    /**
+     * Takes the records accumulated so far for an end point out of the
+     * arena, so that they may be written while the arena keeps filling up
+     *
+     * @return a stable copy of the taken record references
+     */
+    public List<byte[]> drain(Records records) {
+        List<byte[]> drained = ImmutableList.copyOf(records);
+        Arrays.fill(records.m_records, 0, records.m_size, null);
+        m_size -= records.m_size;
+        records.m_highWaterMark = Math.max(records.m_highWaterMark, records.m_size);
+        records.m_size = 0;
+        return drained;
+    }
+
+    /**
+     * @return the end point records added since the last reset, in the order
+     *    their end points were first seen. Some of them may be empty, if
+     *    they were {@link #drain(Records) drained}
+     */
+    @Override
+    public Iterator<Records> iterator() {
+        return m_active.iterator();
+    }
+
+    public int getEndPointCount() {
+        return m_active.size();
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * @return the byte count of all the records added since the last reset,
+     *    including those that were drained
+     */
+    public long getBytes() {
+        return m_bytes;
+    }
+
+    public boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    /**
+     * Readies the arena for the next block
+     */
+    public void reset() {
+        Iterator<Records> itr = m_byEndPoint.values().iterator();
+        while (itr.hasNext()) {
+            Records records = itr.next();
+            records.reset();
+            if (records.m_idleResets > IDLE_RESETS) {
+                itr.remove();
+            }
+        }
+        m_active.clear();
+        m_last = null;
+        m_size = 0;
+        m_bytes = 0L;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordArena [endPoints=" + m_active.size() + ", records=" + m_size + ", bytes=" + m_bytes + "]";
+    }
+}
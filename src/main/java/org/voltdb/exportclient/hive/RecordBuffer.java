@@ -0,0 +1,358 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.util.Arrays;
+
+import com.google_voltpatches.common.base.Preconditions;
+
+/**
+ * A growable, reusable byte buffer that records are encoded into as UTF-8.
+ * It is meant to be reset and reused between records, so that encoding a
+ * record does not go through intermediate {@link String}s.
+ */
+public class RecordBuffer {
+    private final static byte [] DIGIT_TENS = {
+        '0', '0', '0', '0', '0', '0', '0', '0', '0', '0',
+        '1', '1', '1', '1', '1', '1', '1', '1', '1', '1',
+        '2', '2', '2', '2', '2', '2', '2', '2', '2', '2',
+        '3', '3', '3', '3', '3', '3', '3', '3', '3', '3',
+        '4', '4', '4', '4', '4', '4', '4', '4', '4', '4',
+        '5', '5', '5', '5', '5', '5', '5', '5', '5', '5',
+        '6', '6', '6', '6', '6', '6', '6', '6', '6', '6',
+        '7', '7', '7', '7', '7', '7', '7', '7', '7', '7',
+        '8', '8', '8', '8', '8', '8', '8', '8', '8', '8',
+        '9', '9', '9', '9', '9', '9', '9', '9', '9', '9',
+    };
+    private final static byte [] DIGIT_ONES = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+    };
+    private final static byte [] LONG_MIN_VALUE = {
+        '-', '9', '2', '2', '3', '3', '7', '2', '0', '3', '6',
+        '8', '5', '4', '7', '7', '5', '8', '0', '8'
+    };
+    final static byte [] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private byte [] m_bytes;
+    private int m_length = 0;
+
+    public RecordBuffer(int initialCapacity) {
+        Preconditions.checkArgument(initialCapacity > 0, "initial capacity must be positive");
+        m_bytes = new byte[initialCapacity];
+    }
+
+    public int length() {
+        return m_length;
+    }
+
+    public byte [] array() {
+        return m_bytes;
+    }
+
+    public RecordBuffer reset() {
+        m_length = 0;
+        return this;
+    }
+
+    public void setLength(int length) {
+        Preconditions.checkArgument(
+                length >= 0 && length <= m_length,
+                "length %s is out of range [0,%s]", length, m_length
+                );
+        m_length = length;
+    }
+
+    public byte [] toByteArray() {
+        return Arrays.copyOf(m_bytes, m_length);
+    }
+
+    public byte [] toByteArray(int offset) {
+        return Arrays.copyOfRange(m_bytes, offset, m_length);
+    }
+
+    final void ensureCapacity(int needed) {
+        if (m_length + needed > m_bytes.length) {
+            int capacity = Math.max(m_bytes.length << 1, m_length + needed);
+            m_bytes = Arrays.copyOf(m_bytes, capacity);
+        }
+    }
+
+    public RecordBuffer append(byte b) {
+        ensureCapacity(1);
+        m_bytes[m_length++] = b;
+        return this;
+    }
+
+    public RecordBuffer append(char c) {
+        return append((byte)c);
+    }
+
+    public RecordBuffer append(byte [] bytes) {
+        return append(bytes, 0, bytes.length);
+    }
+
+    public RecordBuffer append(byte [] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, m_bytes, m_length, length);
+        m_length += length;
+        return this;
+    }
+
+    public RecordBuffer putShort(int v) {
+        ensureCapacity(2);
+        m_bytes[m_length++] = (byte)(v >> 8);
+        m_bytes[m_length++] = (byte)v;
+        return this;
+    }
+
+    public RecordBuffer putInt(int v) {
+        ensureCapacity(4);
+        setInt(m_length, v);
+        m_length += 4;
+        return this;
+    }
+
+    public RecordBuffer putLong(long v) {
+        ensureCapacity(8);
+        putInt((int)(v >> 32));
+        return putInt((int)v);
+    }
+
+    /**
+     * Overwrites, in big endian order, the four bytes at the given position
+     */
+    public void setInt(int position, int v) {
+        Preconditions.checkArgument(
+                position >= 0 && position + 4 <= m_bytes.length,
+                "position %s is out of range", position
+                );
+        m_bytes[position]   = (byte)(v >> 24);
+        m_bytes[position+1] = (byte)(v >> 16);
+        m_bytes[position+2] = (byte)(v >> 8);
+        m_bytes[position+3] = (byte)v;
+    }
+
+    /**
+     * Appends the given string, assumed to be made of 7 bit ASCII characters
+     * only (like the string rendition of numbers)
+     */
+    public RecordBuffer appendAscii(CharSequence s) {
+        final int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; ++i) {
+            m_bytes[m_length++] = (byte)s.charAt(i);
+        }
+        return this;
+    }
+
+    public RecordBuffer appendLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            return append(LONG_MIN_VALUE);
+        }
+        ensureCapacity(20);
+        if (v < 0) {
+            m_bytes[m_length++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (long p = 10; digits < 19 && v >= p; p *= 10) {
+            ++digits;
+        }
+        int pos = m_length + digits;
+        m_length = pos;
+        while (v >= 100) {
+            int r = (int)(v % 100);
+            v /= 100;
+            m_bytes[--pos] = DIGIT_ONES[r];
+            m_bytes[--pos] = DIGIT_TENS[r];
+        }
+        int r = (int)v;
+        m_bytes[--pos] = DIGIT_ONES[r];
+        if (r >= 10) {
+            m_bytes[--pos] = DIGIT_TENS[r];
+        }
+        return this;
+    }
+
+    /**
+     * Appends the given non negative value left padded with zeros to the
+     * given width
+     */
+    public RecordBuffer appendPadded(int v, int width) {
+        ensureCapacity(width);
+        int pos = m_length + width;
+        m_length = pos;
+        for (int i = 0; i < width; ++i) {
+            m_bytes[--pos] = (byte)('0' + v % 10);
+            v /= 10;
+        }
+        return this;
+    }
+
+    /**
+     * Appends the UTF-8 encoding of the given character sequence. Unpaired
+     * surrogates are replaced by '?', the same way {@link String#getBytes}
+     * does it
+     */
+    public RecordBuffer appendUtf8(CharSequence s) {
+        final int length = s.length();
+        for (int i = 0; i < length; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                append((byte)c);
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < length && Character.isLowSurrogate(s.charAt(i+1))) {
+                appendCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+            } else {
+                appendUtf8(c);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends the UTF-8 encoding of a character that is not part of a
+     * surrogate pair
+     */
+    public RecordBuffer appendUtf8(char c) {
+        if (c < 0x80) {
+            return append((byte)c);
+        } else if (Character.isSurrogate(c)) {
+            return append((byte)'?');
+        }
+        return appendCodePoint(c);
+    }
+
+    public RecordBuffer appendCodePoint(int cp) {
+        ensureCapacity(4);
+        if (cp < 0x80) {
+            m_bytes[m_length++] = (byte)cp;
+        } else if (cp < 0x800) {
+            m_bytes[m_length++] = (byte)(0xc0 | (cp >> 6));
+            m_bytes[m_length++] = (byte)(0x80 | (cp & 0x3f));
+        } else if (cp < 0x10000) {
+            m_bytes[m_length++] = (byte)(0xe0 | (cp >> 12));
+            m_bytes[m_length++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+            m_bytes[m_length++] = (byte)(0x80 | (cp & 0x3f));
+        } else {
+            m_bytes[m_length++] = (byte)(0xf0 | (cp >> 18));
+            m_bytes[m_length++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+            m_bytes[m_length++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+            m_bytes[m_length++] = (byte)(0x80 | (cp & 0x3f));
+        }
+        return this;
+    }
+
+    /**
+     * @return the length of the well formed UTF-8 sequence at the given
+     *    position, or -1 if it is truncated, overlong, or encodes a surrogate
+     *    or a code point past U+10FFFF
+     */
+    static int utf8SequenceLength(byte [] bytes, int pos, int end) {
+        final int b0 = bytes[pos] & 0xff;
+        if (b0 < 0x80) {
+            return 1;
+        } else if (b0 < 0xc2) {
+            return -1;
+        } else if (b0 < 0xe0) {
+            return pos + 1 < end && isContinuation(bytes[pos + 1]) ? 2 : -1;
+        } else if (b0 < 0xf0) {
+            if (pos + 2 >= end) return -1;
+            final int b1 = bytes[pos + 1] & 0xff;
+            if (!isContinuation(b1) || !isContinuation(bytes[pos + 2])
+                    || (b0 == 0xe0 && b1 < 0xa0) || (b0 == 0xed && b1 >= 0xa0)) {
+                return -1;
+            }
+            return 3;
+        } else if (b0 < 0xf5) {
+            if (pos + 3 >= end) return -1;
+            final int b1 = bytes[pos + 1] & 0xff;
+            if (!isContinuation(b1) || !isContinuation(bytes[pos + 2])
+                    || !isContinuation(bytes[pos + 3])
+                    || (b0 == 0xf0 && b1 < 0x90) || (b0 == 0xf4 && b1 >= 0x90)) {
+                return -1;
+            }
+            return 4;
+        }
+        return -1;
+    }
+
+    private static boolean isContinuation(int b) {
+        return (b & 0xc0) == 0x80;
+    }
+
+    /**
+     * @return the code point of a well formed UTF-8 sequence of the given length
+     */
+    static int utf8CodePoint(byte [] bytes, int pos, int length) {
+        switch (length) {
+        case 1:
+            return bytes[pos];
+        case 2:
+            return (bytes[pos] & 0x1f) << 6 | (bytes[pos + 1] & 0x3f);
+        case 3:
+            return (bytes[pos] & 0x0f) << 12 | (bytes[pos + 1] & 0x3f) << 6
+                    | (bytes[pos + 2] & 0x3f);
+        default:
+            return (bytes[pos] & 0x07) << 18 | (bytes[pos + 1] & 0x3f) << 12
+                    | (bytes[pos + 2] & 0x3f) << 6 | (bytes[pos + 3] & 0x3f);
+        }
+    }
+
+    /**
+     * @return true if the given byte range is well formed UTF-8, and therefore
+     *    it encodes the same as the {@link String} it decodes into
+     */
+    static boolean isWellFormedUtf8(byte [] bytes, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end;) {
+            if (bytes[i] >= 0) {
+                ++i;
+                continue;
+            }
+            int n = utf8SequenceLength(bytes, i, end);
+            if (n < 0) return false;
+            i += n;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordBuffer [length=" + m_length + ", capacity=" + m_bytes.length + "]";
+    }
+}
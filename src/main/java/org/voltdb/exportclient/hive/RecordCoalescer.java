@@ -0,0 +1,150 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hive.hcatalog.streaming.HiveEndPoint;
+import org.voltcore.utils.CoreUtils;
+
+import com.google_voltpatches.common.util.concurrent.ListenableFuture;
+import com.google_voltpatches.common.util.concurrent.SettableFuture;
+
+/**
+ * Gathers the records that export decoders hand to the sink for the same
+ * end point, and commits them in one transaction once they amount to a
+ * given row count or byte count, or once the oldest of them has waited for
+ * a given delay, whichever comes first. The future returned to each
+ * contributor completes when the covering transaction commits, so that
+ * contributing decoders only acknowledge their blocks once their records
+ * are committed.
+ */
+class RecordCoalescer {
+    private final static HiveExportLogger LOG = new HiveExportLogger();
+
+    final static int MAX_DELAY_MS = Integer.getInteger("HIVE_COALESCE_MAX_DELAY_MS", 0);
+    final static int MAX_ROWS = Integer.getInteger("HIVE_COALESCE_MAX_ROWS", 50_000);
+    final static int MAX_BYTES = Integer.getInteger("HIVE_COALESCE_MAX_BYTES", 16 * 1024 * 1024);
+
+    private final HiveSink m_sink;
+    private final ConcurrentMap<HiveEndPoint, Pending> m_pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService m_timer;
+    private final long m_maxDelayMs;
+    private final int m_maxRows;
+    private final long m_maxBytes;
+
+    RecordCoalescer(HiveSink sink, long maxDelayMs, int maxRows, long maxBytes) {
+        m_sink = sink;
+        m_maxDelayMs = maxDelayMs;
+        m_maxRows = maxRows;
+        m_maxBytes = maxBytes;
+        m_timer = CoreUtils.getScheduledThreadPoolExecutor(
+                "Hive Export Sink Coalescer", 1, CoreUtils.SMALL_STACK_SIZE);
+    }
+
+    static boolean isEnabled() {
+        return MAX_DELAY_MS > 0;
+    }
+
+    private final static class Pending {
+        private final List<byte[]> m_records = new ArrayList<>();
+        private final SettableFuture<Object> m_committed = SettableFuture.create();
+        private long m_bytes = 0;
+        private boolean m_flushed = false;
+    }
+
+    /**
+     * @return a future that completes when the given records are committed
+     */
+    ListenableFuture<?> add(final HiveEndPoint endPoint, Collection<byte[]> records) {
+        Pending created = null;
+        while (true) {
+            Pending pending = m_pending.get(endPoint);
+            if (pending == null) {
+                Pending fresh = new Pending();
+                pending = m_pending.putIfAbsent(endPoint, fresh);
+                if (pending == null) {
+                    pending = created = fresh;
+                }
+            }
+            boolean flushNow;
+            synchronized (pending) {
+                if (pending.m_flushed) {
+                    /*
+                     * its records are already submitted for writing, so those
+                     * added to its successor are written after them
+                     */
+                    Pending successor = new Pending();
+                    if (m_pending.replace(endPoint, pending, successor)) {
+                        created = successor;
+                    }
+                    continue;
+                }
+                pending.m_records.addAll(records);
+                for (byte [] record: records) {
+                    pending.m_bytes += record.length;
+                }
+                flushNow = pending.m_records.size() >= m_maxRows || pending.m_bytes >= m_maxBytes;
+            }
+            if (flushNow) {
+                flush(endPoint, pending);
+            } else if (pending == created) {
+                final Pending scheduled = pending;
+                m_timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(endPoint, scheduled);
+                    }
+                }, m_maxDelayMs, TimeUnit.MILLISECONDS);
+            }
+            return pending.m_committed;
+        }
+    }
+
+    private void flush(HiveEndPoint endPoint, Pending pending) {
+        synchronized (pending) {
+            if (pending.m_flushed) return;
+            pending.m_flushed = true;
+            /*
+             * the write is submitted while holding the pending monitor, so that
+             * a successor may only be installed once it is submitted, and the
+             * next records for the same end point are written after these
+             */
+            try {
+                pending.m_committed.setFuture(m_sink.asWriteTask(endPoint, pending.m_records));
+            } catch (RuntimeException e) {
+                LOG.error("Unable to submit coalesced records for %s", e, endPoint);
+                pending.m_committed.setException(e);
+            }
+        }
+        m_pending.remove(endPoint, pending);
+    }
+}
@@ -0,0 +1,578 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.hive.hcatalog.streaming.HiveEndPoint;
+
+import com.google_voltpatches.common.base.Preconditions;
+import com.google_voltpatches.common.util.concurrent.Futures;
+import com.google_voltpatches.common.util.concurrent.ListenableFuture;
+
+/**
+ * A local, memory mapped, disk spool that sits between export decoders and
+ * the Hive sink. Decoders append the records of a block to the spool, and
+ * may acknowledge the block as soon as the append is forced to disk. A
+ * background drainer replays the spooled records to Hive, in the order they
+ * were appended, and retries them until they are committed, so that Hive
+ * outages are absorbed by the spool instead of the VoltDB export overflow.
+ * <p>
+ * The spool is made of segment files. Each starts with a header holding
+ * a magic number, a format version, and the position up to which its
+ * entries were drained. Each entry then holds the records for one end
+ * point, prefixed by their length and their CRC32 checksum. On startup,
+ * existing segments are scanned up to their first missing or corrupt entry,
+ * and their undrained entries are replayed.
+ * <p>
+ * A spool holds a lock on its directory for as long as it is open, so that
+ * no two spools recover and replay the same segments.
+ */
+public class RecordSpool {
+    private final static HiveExportLogger LOG = new HiveExportLogger();
+
+    final static int SEGMENT_SIZE = Integer.getInteger("HIVE_SPOOL_SEGMENT_SIZE", 64 * 1024 * 1024);
+    final static int DRAIN_BATCH = Integer.getInteger("HIVE_SPOOL_DRAIN_BATCH", 64);
+    final static long DEPTH_REPORT_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    final static long MAX_RETRY_BACKOFF_MS = TimeUnit.SECONDS.toMillis(30);
+
+    final static int MAGIC = 0x48535031; // HSP1
+    final static int VERSION = 1;
+    final static int DRAINED_AT = 8;
+    final static int HEADER_SIZE = 12;
+    final static int ENTRY_HEADER_SIZE = 8;
+
+    final static String SEGMENT_PREFIX = "hive-spool-";
+    final static String SEGMENT_SUFFIX = ".seg";
+    final static String LOCK_FILE = "hive-spool.lock";
+
+    private final File m_directory;
+    private final long m_maxBytes;
+    private final int m_segmentSize;
+    private final HiveEndPointFactory m_endPointFactory;
+    private final HiveSink m_sink;
+    private final FileChannel m_lockChannel;
+
+    private final ArrayDeque<Segment> m_segments = new ArrayDeque<>();
+    private Segment m_head = null;
+    private long m_nextSequence = 0;
+
+    private final AtomicLong m_depthBytes = new AtomicLong(0);
+    private final AtomicLong m_depthEntries = new AtomicLong(0);
+    private final AtomicLong m_drainedEntries = new AtomicLong(0);
+
+    private final Thread m_drainer;
+    private volatile boolean m_stopped = false;
+
+    public RecordSpool(File directory, long maxBytes,
+            HiveEndPointFactory endPointFactory, HiveSink sink) throws IOException {
+        this(directory, maxBytes, SEGMENT_SIZE, endPointFactory, sink);
+    }
+
+    RecordSpool(File directory, long maxBytes, int segmentSize,
+            HiveEndPointFactory endPointFactory, HiveSink sink) throws IOException {
+        Preconditions.checkArgument(maxBytes > segmentSize,
+                "spool size %s must be larger than its segment size %s", maxBytes, segmentSize);
+        m_directory = Preconditions.checkNotNull(directory, "null spool directory");
+        m_maxBytes = maxBytes;
+        m_segmentSize = segmentSize;
+        m_endPointFactory = Preconditions.checkNotNull(endPointFactory, "null end point factory");
+        m_sink = Preconditions.checkNotNull(sink, "null sink");
+
+        if (!m_directory.isDirectory() && !m_directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + m_directory);
+        }
+        m_lockChannel = lock(m_directory);
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            unlock();
+            throw e;
+        }
+
+        m_drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Hive Export Spool Drainer " + m_directory.getName());
+        m_drainer.setDaemon(true);
+        m_drainer.start();
+    }
+
+    /**
+     * A memory mapped segment file. Its write position is only advanced
+     * once the entries up to it are forced to disk
+     */
+    private final static class Segment {
+        private final long m_sequence;
+        private final File m_file;
+        private final MappedByteBuffer m_buffer;
+        private volatile int m_writePosition = HEADER_SIZE;
+        private int m_drainPosition = HEADER_SIZE;
+        private volatile boolean m_sealed = false;
+
+        private Segment(long sequence, File file, MappedByteBuffer buffer) {
+            m_sequence = sequence;
+            m_file = file;
+            m_buffer = buffer;
+        }
+
+        private int capacity() {
+            return m_buffer.capacity();
+        }
+
+        @Override
+        public String toString() {
+            return "Segment [file=" + m_file + ", writePosition=" + m_writePosition
+                    + ", drainPosition=" + m_drainPosition + "]";
+        }
+    }
+
+    /**
+     * Locks the given spool directory
+     *
+     * @return the channel that holds the lock, and releases it when closed
+     * @throws IOException if the directory is locked by another spool, in this
+     *    process or in another one
+     */
+    private static FileChannel lock(File directory) throws IOException {
+        FileChannel channel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another spool of this process
+        } finally {
+            if (lock == null) {
+                channel.close();
+            }
+        }
+        if (lock == null) {
+            throw new IOException("Spool directory " + directory + " is in use by another spool");
+        }
+        return channel;
+    }
+
+    private void unlock() {
+        try {
+            m_lockChannel.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to unlock spool directory %s", e, m_directory);
+        }
+    }
+
+    private static File segmentFile(File directory, long sequence) {
+        return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private void recover() throws IOException {
+        File [] files = m_directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Unable to list spool directory " + m_directory);
+        }
+        Arrays.sort(files);
+        for (File file: files) {
+            String name = file.getName();
+            long sequence = Long.parseLong(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            m_nextSequence = Math.max(m_nextSequence, sequence + 1);
+            if (file.length() < HEADER_SIZE || file.length() > Integer.MAX_VALUE) {
+                LOG.warn("Discarding malformed spool segment %s", file);
+                delete(file);
+                continue;
+            }
+            Segment segment = new Segment(sequence, file, map(file, (int)file.length()));
+            ByteBuffer buffer = segment.m_buffer;
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                LOG.warn("Discarding spool segment %s, as it has an unknown format", file);
+                delete(file);
+                continue;
+            }
+            int position = HEADER_SIZE;
+            int entries = 0;
+            for (int length = entryLength(buffer, position);
+                    length >= 0;
+                    length = entryLength(buffer, position)) {
+                position += ENTRY_HEADER_SIZE + length;
+                ++entries;
+            }
+            segment.m_writePosition = position;
+            segment.m_drainPosition = Math.max(HEADER_SIZE, Math.min(buffer.getInt(DRAINED_AT), position));
+            segment.m_sealed = true;
+            if (segment.m_drainPosition == segment.m_writePosition) {
+                delete(file);
+                continue;
+            }
+            for (int p = HEADER_SIZE; p < segment.m_drainPosition; p += ENTRY_HEADER_SIZE + entryLength(buffer, p)) {
+                --entries;
+            }
+            m_segments.add(segment);
+            m_depthBytes.addAndGet(segment.capacity());
+            m_depthEntries.addAndGet(entries);
+            LOG.info("Recovered %d undrained entries from spool segment %s", entries, file);
+        }
+    }
+
+    /**
+     * @return the payload length of the well formed entry at the given
+     *    position, or -1 if there is no such entry
+     */
+    private static int entryLength(ByteBuffer buffer, int position) {
+        if (position + ENTRY_HEADER_SIZE > buffer.capacity()) return -1;
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + ENTRY_HEADER_SIZE + length > buffer.capacity()) return -1;
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(position + ENTRY_HEADER_SIZE + length).position(position + ENTRY_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int)crc.getValue() == buffer.getInt(position + 4) ? length : -1;
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            LOG.warn("Unable to delete spool segment %s", file);
+        }
+    }
+
+    /**
+     * Maps a new head segment. The previous head is only sealed once its
+     * successor is installed, so that when the spool is full it remains the
+     * head, and may still take entries small enough to fit in it.
+     * Must be called while holding this spool monitor
+     */
+    private Segment roll(int needed) throws IOException {
+        int size = Math.max(m_segmentSize, HEADER_SIZE + needed);
+        if (m_depthBytes.get() + size > m_maxBytes) {
+            throw new HiveExportException(
+                    "Spool %s is full, with %d bytes in %d segments",
+                    m_directory, m_depthBytes.get(), getSegmentCount());
+        }
+        long sequence = m_nextSequence++;
+        File file = segmentFile(m_directory, sequence);
+        Segment segment = new Segment(sequence, file, map(file, size));
+        segment.m_buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(DRAINED_AT, HEADER_SIZE);
+        segment.m_buffer.force();
+        m_depthBytes.addAndGet(size);
+        synchronized (m_segments) {
+            m_segments.add(segment);
+            if (m_head != null) {
+                m_head.m_sealed = true;
+            }
+            m_head = segment;
+        }
+        return segment;
+    }
+
+    private static int entrySize(RecordArena.Records records) {
+        int size = 2;
+        for (String partitionValue: records.getEndPoint().partitionVals) {
+            size += 4 + partitionValue.getBytes(StandardCharsets.UTF_8).length;
+        }
+        size += 4;
+        for (byte [] record: records) {
+            size += 4 + record.length;
+        }
+        return size;
+    }
+
+    /**
+     * Appends the records of a block, and forces them to disk
+     *
+     * @throws HiveExportException if the spool is full, or it cannot be written
+     */
+    public synchronized void append(RecordArena arena) {
+        if (m_stopped) {
+            throw new HiveExportException("Spool %s is stopped", m_directory);
+        }
+        if (arena.isEmpty()) return;
+        try {
+            Segment segment = m_head;
+            int position = segment == null ? 0 : segment.m_writePosition;
+            int entries = 0;
+            for (RecordArena.Records records: arena) {
+                if (records.isEmpty()) continue;
+                final int length = entrySize(records);
+                if (segment == null || segment.m_sealed
+                        || position + ENTRY_HEADER_SIZE + length > segment.capacity()) {
+                    publish(segment, position);
+                    m_depthEntries.addAndGet(entries);
+                    entries = 0;
+                    segment = roll(ENTRY_HEADER_SIZE + length);
+                    position = segment.m_writePosition;
+                }
+                ByteBuffer buffer = segment.m_buffer.duplicate();
+                buffer.position(position + ENTRY_HEADER_SIZE);
+                List<String> partitionValues = records.getEndPoint().partitionVals;
+                buffer.putShort((short)partitionValues.size());
+                for (String partitionValue: partitionValues) {
+                    byte [] bytes = partitionValue.getBytes(StandardCharsets.UTF_8);
+                    buffer.putInt(bytes.length).put(bytes);
+                }
+                buffer.putInt(records.size());
+                for (byte [] record: records) {
+                    buffer.putInt(record.length).put(record);
+                }
+                buffer.limit(buffer.position()).position(position + ENTRY_HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                crc.update(buffer);
+                segment.m_buffer.putInt(position, length).putInt(position + 4, (int)crc.getValue());
+                position += ENTRY_HEADER_SIZE + length;
+                ++entries;
+            }
+            publish(segment, position);
+            m_depthEntries.addAndGet(entries);
+        } catch (IOException e) {
+            String msg = "Unable to append to spool %s";
+            LOG.error(msg, e, m_directory);
+            throw new HiveExportException(msg, e, m_directory);
+        }
+        synchronized (m_segments) {
+            m_segments.notifyAll();
+        }
+    }
+
+    /**
+     * Forces the segment entries appended up to the given position to disk,
+     * and makes them visible to the drainer
+     */
+    private static void publish(Segment segment, int position) {
+        if (segment == null || segment.m_writePosition == position) return;
+        segment.m_buffer.force();
+        segment.m_writePosition = position;
+    }
+
+    private void drain() {
+        long backoff = 100;
+        long reportedAt = System.currentTimeMillis();
+        while (!m_stopped) {
+            Segment segment;
+            synchronized (m_segments) {
+                segment = m_segments.peek();
+                while (!m_stopped && (segment == null || (!segment.m_sealed
+                        && segment.m_drainPosition == segment.m_writePosition))) {
+                    try {
+                        m_segments.wait(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    segment = m_segments.peek();
+                }
+            }
+            if (m_stopped) return;
+
+            if (System.currentTimeMillis() - reportedAt >= DEPTH_REPORT_INTERVAL_MS) {
+                reportedAt = System.currentTimeMillis();
+                LOG.info("%s", this);
+            }
+            if (retireIfDrained(segment)) {
+                continue;
+            }
+            final int end = segment.m_writePosition;
+
+            List<Entry> batch = new ArrayList<>(DRAIN_BATCH);
+            Set<HiveEndPoint> endPoints = new LinkedHashSet<>();
+            int position = segment.m_drainPosition;
+            int entries = 0;
+            while (position < end && entries < DRAIN_BATCH) {
+                final int length = segment.m_buffer.getInt(position);
+                try {
+                    Entry entry = read(segment, position + ENTRY_HEADER_SIZE);
+                    batch.add(entry);
+                    endPoints.add(entry.m_endPoint);
+                } catch (RuntimeException e) {
+                    LOG.error("Dropping unreplayable entry at %d in spool segment %s",
+                            e, position, segment.m_file);
+                }
+                position += ENTRY_HEADER_SIZE + length;
+                ++entries;
+            }
+            m_endPointFactory.createPartitions(endPoints);
+            List<ListenableFuture<?>> writes = new ArrayList<>(batch.size());
+            for (Entry entry: batch) {
+                writes.add(m_sink.enqueue(entry.m_endPoint, entry.m_records));
+            }
+            try {
+                Futures.allAsList(writes).get();
+                backoff = 100;
+            } catch (InterruptedException e) {
+                return;
+            } catch (ExecutionException e) {
+                LOG.warn("Unable to drain spool segment %s, retrying in %d ms",
+                        e.getCause(), segment.m_file, backoff);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoff = Math.min(backoff << 1, MAX_RETRY_BACKOFF_MS);
+                continue;
+            }
+            segment.m_drainPosition = position;
+            segment.m_buffer.putInt(DRAINED_AT, position);
+            m_depthEntries.addAndGet(-entries);
+            m_drainedEntries.addAndGet(entries);
+        }
+    }
+
+    /**
+     * A spooled entry, read back for replay
+     */
+    private final static class Entry {
+        private final HiveEndPoint m_endPoint;
+        private final List<byte[]> m_records;
+
+        private Entry(HiveEndPoint endPoint, List<byte[]> records) {
+            m_endPoint = endPoint;
+            m_records = records;
+        }
+    }
+
+    private Entry read(Segment segment, int position) {
+        ByteBuffer buffer = segment.m_buffer.duplicate();
+        buffer.position(position);
+        int partitionCount = buffer.getShort();
+        List<String> partitionValues = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; ++i) {
+            byte [] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            partitionValues.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        int recordCount = buffer.getInt();
+        List<byte[]> records = new ArrayList<>(recordCount);
+        for (int i = 0; i < recordCount; ++i) {
+            byte [] record = new byte[buffer.getInt()];
+            buffer.get(record);
+            records.add(record);
+        }
+        HiveEndPoint endPoint = m_endPointFactory.endPointFor(partitionValues);
+        return new Entry(endPoint, Collections.unmodifiableList(records));
+    }
+
+    /**
+     * Retires the given segment if it is sealed, and drained up to its last
+     * entry. It is decided while holding the same monitor as appends, so
+     * that no append may sneak into a segment that is being retired
+     *
+     * @return true if retired
+     */
+    private synchronized boolean retireIfDrained(Segment segment) {
+        if (!segment.m_sealed || segment.m_drainPosition != segment.m_writePosition) {
+            return false;
+        }
+        retire(segment);
+        return true;
+    }
+
+    private void retire(Segment segment) {
+        synchronized (m_segments) {
+            m_segments.remove(segment);
+        }
+        m_depthBytes.addAndGet(-segment.capacity());
+        delete(segment.m_file);
+    }
+
+    /**
+     * @return the disk space taken by the spool segments
+     */
+    public long getDepthBytes() {
+        return m_depthBytes.get();
+    }
+
+    /**
+     * @return the number of spooled end point entries that are yet to be drained
+     */
+    public long getDepthEntries() {
+        return m_depthEntries.get();
+    }
+
+    public long getDrainedEntries() {
+        return m_drainedEntries.get();
+    }
+
+    public int getSegmentCount() {
+        synchronized (m_segments) {
+            return m_segments.size();
+        }
+    }
+
+    /**
+     * Stops the drainer. Undrained entries remain in the spool segments,
+     * and are replayed when the spool is next opened
+     */
+    public void shutdown() {
+        m_stopped = true;
+        synchronized (m_segments) {
+            m_segments.notifyAll();
+        }
+        m_drainer.interrupt();
+        try {
+            m_drainer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RecordSpool [directory=" + m_directory + ", depthEntries=" + getDepthEntries()
+                + ", depthBytes=" + getDepthBytes() + ", segments=" + getSegmentCount()
+                + ", drainedEntries=" + getDrainedEntries() + "]";
+    }
+}
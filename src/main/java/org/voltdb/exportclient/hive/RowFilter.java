@@ -0,0 +1,412 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+import com.google_voltpatches.common.base.Preconditions;
+import com.google_voltpatches.common.collect.ImmutableList;
+
+/**
+ * A conjunction of simple predicates on export row column values. Clauses
+ * are parsed once from their configuration, and compiled against the
+ * columns of each exported table, so that evaluating them on a row amounts
+ * to comparing primitive values. Clauses are written as one of
+ * <ul>
+ * <li><code>COLUMN op value</code>, where op is one of <code>= != &lt;&gt; &lt; &lt;= &gt; &gt;=</code></li>
+ * <li><code>COLUMN is null</code></li>
+ * <li><code>COLUMN is not null</code></li>
+ * </ul>
+ * String values may be enclosed in single quotes, and are ordered by code
+ * point, which is the order of their UTF-8 bytes. Timestamp values are either
+ * microseconds since the epoch, or <code>yyyy-MM-dd[ HH:mm:ss[.SSSSSS]]</code>
+ * in the export timezone. Comparisons with null column values never hold.
+ */
+public class RowFilter {
+
+    final static Pattern COMPARISON_RE = Pattern.compile(
+            "(\\w+)\\s*(=|!=|<>|<=|>=|<|>)\\s*(.*)");
+    final static Pattern NULL_CHECK_RE = Pattern.compile(
+            "(\\w+)\\s+(?i:is)\\s+((?i:not)\\s+)?(?i:null)");
+
+    public enum Operator {
+        EQ, NE, LT, LE, GT, GE, IS_NULL, IS_NOT_NULL;
+
+        static Operator of(String symbol) {
+            switch (symbol) {
+            case "=":  return EQ;
+            case "!=":
+            case "<>": return NE;
+            case "<":  return LT;
+            case "<=": return LE;
+            case ">":  return GT;
+            case ">=": return GE;
+            default:
+                throw new IllegalArgumentException("unknown operator \"" + symbol + "\"");
+            }
+        }
+
+        boolean holdsFor(int comparison) {
+            switch (this) {
+            case EQ: return comparison == 0;
+            case NE: return comparison != 0;
+            case LT: return comparison < 0;
+            case LE: return comparison <= 0;
+            case GT: return comparison > 0;
+            case GE: return comparison >= 0;
+            default: return false;
+            }
+        }
+    }
+
+    /**
+     * A parsed, but not yet compiled, row filter clause
+     */
+    public static class Clause {
+        final String m_column;
+        final Operator m_operator;
+        final String m_value;
+
+        Clause(String column, Operator operator, String value) {
+            m_column = column;
+            m_operator = operator;
+            m_value = value;
+        }
+
+        public static Clause parse(String clause) {
+            String trimmed = Preconditions.checkNotNull(clause, "clause is null").trim();
+            Matcher mtc = NULL_CHECK_RE.matcher(trimmed);
+            if (mtc.matches()) {
+                return new Clause(
+                        mtc.group(1),
+                        mtc.group(2) == null ? Operator.IS_NULL : Operator.IS_NOT_NULL,
+                        null
+                        );
+            }
+            mtc = COMPARISON_RE.matcher(trimmed);
+            if (!mtc.matches()) {
+                throw new IllegalArgumentException("malformed row filter clause \"" + clause + "\"");
+            }
+            String value = mtc.group(3).trim();
+            if (value.length() >= 2 && value.startsWith("'") && value.endsWith("'")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            return new Clause(mtc.group(1), Operator.of(mtc.group(2)), value);
+        }
+
+        @Override
+        public String toString() {
+            return m_column + " " + m_operator + (m_value == null ? "" : " '" + m_value + "'");
+        }
+    }
+
+    private final Predicate [] m_predicates;
+
+    private RowFilter(Predicate [] predicates) {
+        m_predicates = predicates;
+    }
+
+    /**
+     * Compiles the given clauses against the columns of an exported table
+     *
+     * @param clauses parsed clauses
+     * @param columnNames all the table column names, including the internal ones
+     * @param columnTypes all the table column types, including the internal ones
+     * @param timeZone the zone in which timestamp values are expressed
+     * @return a row filter, or null if there are no clauses to evaluate
+     */
+    public static RowFilter compile(List<Clause> clauses,
+            List<String> columnNames, List<VoltType> columnTypes, TimeZone timeZone) {
+        if (clauses == null || clauses.isEmpty()) {
+            return null;
+        }
+        Predicate [] predicates = new Predicate[clauses.size()];
+        int p = 0;
+        for (Clause clause: clauses) {
+            int column = -1;
+            for (int i = 0; i < columnNames.size() && column < 0; ++i) {
+                if (columnNames.get(i).equalsIgnoreCase(clause.m_column)) column = i;
+            }
+            if (column < 0) {
+                throw new IllegalArgumentException(
+                        "row filter column \"" + clause.m_column + "\" is not in table columns "
+                        + columnNames);
+            }
+            predicates[p++] = predicateFor(clause, column, columnTypes.get(column), timeZone);
+        }
+        return new RowFilter(predicates);
+    }
+
+    public boolean accept(Object [] fields) {
+        for (Predicate predicate: m_predicates) {
+            final Object v = predicate.m_column < fields.length ? fields[predicate.m_column] : null;
+            if (!predicate.test(v)) return false;
+        }
+        return true;
+    }
+
+    public boolean accept(ExportRowReader row) {
+        for (Predicate predicate: m_predicates) {
+            if (!predicate.test(row)) return false;
+        }
+        return true;
+    }
+
+    private static Predicate predicateFor(Clause clause, int column, VoltType type, TimeZone tz) {
+        if (clause.m_operator == Operator.IS_NULL || clause.m_operator == Operator.IS_NOT_NULL) {
+            return new Predicate(column, clause.m_operator);
+        }
+        try {
+            switch (type) {
+            case TINYINT:
+            case SMALLINT:
+            case INTEGER:
+            case BIGINT:
+                return new LongPredicate(column, clause.m_operator, Long.parseLong(clause.m_value));
+            case FLOAT:
+                return new DoublePredicate(column, clause.m_operator, Double.parseDouble(clause.m_value));
+            case TIMESTAMP:
+                return new TimestampPredicate(column, clause.m_operator, parseTimestamp(clause.m_value, tz));
+            case STRING:
+                return new StringPredicate(column, clause.m_operator, clause.m_value);
+            case DECIMAL:
+                return new DecimalPredicate(column, clause.m_operator, new BigDecimal(clause.m_value));
+            default:
+                throw new IllegalArgumentException(
+                        "row filter clause \"" + clause + "\" can only check "
+                        + type + " columns for nulls");
+            }
+        } catch (NumberFormatException | ParseException e) {
+            throw new IllegalArgumentException(
+                    "row filter clause \"" + clause + "\" has a value that does not fit its "
+                    + type + " column", e);
+        }
+    }
+
+    private final static List<String> TIMESTAMP_PATTERNS =
+            ImmutableList.of("yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd");
+
+    static long parseTimestamp(String value, TimeZone tz) throws ParseException {
+        if (value.matches("-?\\d+")) {
+            return Long.parseLong(value);
+        }
+        String fraction = "";
+        int dot = value.lastIndexOf('.');
+        if (dot > 0 && value.indexOf(':') > 0) {
+            fraction = value.substring(dot + 1);
+            value = value.substring(0, dot);
+            if (!fraction.matches("\\d{1,6}")) {
+                throw new ParseException("malformed fraction of a second in " + value, dot);
+            }
+        }
+        for (String pattern: TIMESTAMP_PATTERNS) {
+            SimpleDateFormat sdf = new SimpleDateFormat(pattern);
+            sdf.setLenient(false);
+            sdf.setTimeZone(tz);
+            // the whole value must match, and not just a leading date
+            ParsePosition position = new ParsePosition(0);
+            Date parsed = sdf.parse(value, position);
+            if (parsed != null && position.getIndex() == value.length()) {
+                long micros = parsed.getTime() * 1000L;
+                if (!fraction.isEmpty()) {
+                    micros += Long.parseLong((fraction + "00000").substring(0, 6));
+                }
+                return micros;
+            }
+        }
+        throw new ParseException("malformed timestamp " + value, 0);
+    }
+
+    /**
+     * Null checks, and the base for value comparisons
+     */
+    static class Predicate {
+        final int m_column;
+        final Operator m_operator;
+
+        Predicate(int column, Operator operator) {
+            m_column = column;
+            m_operator = operator;
+        }
+
+        final boolean test(Object v) {
+            if (v == null) {
+                return m_operator == Operator.IS_NULL;
+            } else if (m_operator == Operator.IS_NOT_NULL) {
+                return true;
+            }
+            return m_operator.holdsFor(compareTo(v));
+        }
+
+        final boolean test(ExportRowReader row) {
+            if (row.isNull(m_column)) {
+                return m_operator == Operator.IS_NULL;
+            } else if (m_operator == Operator.IS_NOT_NULL) {
+                return true;
+            }
+            return m_operator.holdsFor(compareTo(row));
+        }
+
+        int compareTo(Object v) {
+            return 0;
+        }
+
+        int compareTo(ExportRowReader row) {
+            return 0;
+        }
+    }
+
+    static final class LongPredicate extends Predicate {
+        private final long m_value;
+
+        LongPredicate(int column, Operator operator, long value) {
+            super(column, operator);
+            m_value = value;
+        }
+
+        @Override
+        int compareTo(Object v) {
+            return Long.compare(((Number)v).longValue(), m_value);
+        }
+
+        @Override
+        int compareTo(ExportRowReader row) {
+            return Long.compare(row.getLong(m_column), m_value);
+        }
+    }
+
+    static final class DoublePredicate extends Predicate {
+        private final double m_value;
+
+        DoublePredicate(int column, Operator operator, double value) {
+            super(column, operator);
+            m_value = value;
+        }
+
+        @Override
+        int compareTo(Object v) {
+            return Double.compare(((Number)v).doubleValue(), m_value);
+        }
+
+        @Override
+        int compareTo(ExportRowReader row) {
+            return Double.compare(row.getDouble(m_column), m_value);
+        }
+    }
+
+    static final class TimestampPredicate extends Predicate {
+        private final long m_micros;
+
+        TimestampPredicate(int column, Operator operator, long micros) {
+            super(column, operator);
+            m_micros = micros;
+        }
+
+        @Override
+        int compareTo(Object v) {
+            return Long.compare(((TimestampType)v).getTime(), m_micros);
+        }
+
+        @Override
+        int compareTo(ExportRowReader row) {
+            return Long.compare(row.getTimestamp(m_column), m_micros);
+        }
+    }
+
+    /**
+     * Compares serialized rows on the UTF-8 bytes of their column value in
+     * place, and decoded rows on the code points of their string, which
+     * orders them the same
+     */
+    static final class StringPredicate extends Predicate {
+        private final String m_value;
+        private final byte [] m_utf8;
+
+        StringPredicate(int column, Operator operator, String value) {
+            super(column, operator);
+            m_value = value;
+            m_utf8 = value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        int compareTo(Object v) {
+            final String s = (String)v;
+            int i = 0, j = 0;
+            while (i < s.length() && j < m_value.length()) {
+                final int a = s.codePointAt(i);
+                final int b = m_value.codePointAt(j);
+                if (a != b) return a < b ? -1 : 1;
+                i += Character.charCount(a);
+                j += Character.charCount(b);
+            }
+            return i < s.length() ? 1 : j < m_value.length() ? -1 : 0;
+        }
+
+        @Override
+        int compareTo(ExportRowReader row) {
+            final byte [] bytes = row.array();
+            final int offset = row.offset(m_column);
+            final int length = row.length(m_column);
+            final int common = Math.min(length, m_utf8.length);
+            for (int i = 0; i < common; ++i) {
+                final int a = bytes[offset + i] & 0xff;
+                final int b = m_utf8[i] & 0xff;
+                if (a != b) return a < b ? -1 : 1;
+            }
+            return Integer.compare(length, m_utf8.length);
+        }
+    }
+
+    static final class DecimalPredicate extends Predicate {
+        private final BigDecimal m_value;
+
+        DecimalPredicate(int column, Operator operator, BigDecimal value) {
+            super(column, operator);
+            m_value = value;
+        }
+
+        @Override
+        int compareTo(Object v) {
+            return ((BigDecimal)v).compareTo(m_value);
+        }
+
+        @Override
+        int compareTo(ExportRowReader row) {
+            return row.getDecimal(m_column).compareTo(m_value);
+        }
+    }
+}
@@ -24,17 +24,21 @@
 
 package org.voltdb.exportclient.hive;
 
-import org.apache.hive.hcatalog.streaming.HiveEndPoint;
 import org.json_voltpatches.JSONException;
 import org.voltdb.exportclient.decode.BatchDecoder;
 
 import com.google_voltpatches.common.base.Preconditions;
-import com.google_voltpatches.common.collect.ImmutableMultimap;
-import com.google_voltpatches.common.collect.Multimap;
 
-public class StreamingHiveDecoder implements BatchDecoder<Multimap<HiveEndPoint, String>, JSONException> {
+/**
+ * Decodes export rows into a {@link RecordArena} that is reused from one
+ * block to the next. The harvested arena remains valid until the decoder
+ * is handed the first row of the next block, or it is discarded. An arena
+ * that writes may still be reading from is abandoned instead
+ */
+public class StreamingHiveDecoder implements BatchDecoder<RecordArena, JSONException> {
 
-    protected ImmutableMultimap.Builder<HiveEndPoint, String> m_map = ImmutableMultimap.builder();
+    protected RecordArena m_arena = new RecordArena();
+    protected boolean m_harvested = false;
     final protected PartitionedJsonDecoder m_partitionedDecoder;
 
     protected StreamingHiveDecoder(PartitionedJsonDecoder partitionedDecoder) {
@@ -43,18 +47,42 @@ public class StreamingHiveDecoder implements BatchDecoder<Multimap<HiveEndPoint,
 
     @Override
     public void add(Object[] fields) throws JSONException {
-        m_partitionedDecoder.decode(m_map, fields);
+        if (m_harvested) discard();
+        m_partitionedDecoder.decode(m_arena, fields);
+    }
+
+    public void add(ExportRowReader row) throws JSONException {
+        if (m_harvested) discard();
+        m_partitionedDecoder.decode(m_arena, row);
+    }
+
+    /**
+     * @return the arena the current block is being decoded into
+     */
+    public RecordArena arena() {
+        return m_arena;
     }
 
     @Override
-    public Multimap<HiveEndPoint, String> harvest() {
-        Multimap<HiveEndPoint, String> harvested = m_map.build();
-        m_map = ImmutableMultimap.builder();
-        return harvested;
+    public RecordArena harvest() {
+        if (m_harvested) discard();
+        m_harvested = true;
+        return m_arena;
     }
 
     @Override
     public void discard() {
+        m_arena.reset();
+        m_harvested = false;
+    }
+
+    /**
+     * Leaves the current arena as is, to the writes that may still be reading
+     * from it, and decodes into a fresh one from now on
+     */
+    public void abandon() {
+        m_arena = new RecordArena();
+        m_harvested = false;
     }
 
     public static Builder builder() {
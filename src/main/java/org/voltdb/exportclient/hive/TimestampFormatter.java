@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google_voltpatches.common.base.Preconditions;
+
+/**
+ * Formats VoltDB microsecond timestamps as <code>yyyy-MM-dd HH:mm:ss.SSSSSS</code>
+ * in a given timezone. The rendered date and time up to the second is cached
+ * for recently seen seconds, so that formatting a timestamp mostly amounts to
+ * appending a cached prefix plus the sub second digits. Instances are
+ * immutable from the outside, and may be shared among decoder threads.
+ */
+public class TimestampFormatter {
+    final static int CACHED_SECONDS = 64;
+    final static int PREFIX_LENGTH = "yyyy-MM-dd HH:mm:ss".length();
+
+    private final TimeZone m_timeZone;
+    private final TimeZone m_defaultZone = TimeZone.getDefault();
+    private final AtomicReferenceArray<Second> m_seconds =
+            new AtomicReferenceArray<>(CACHED_SECONDS);
+
+    public TimestampFormatter(TimeZone timeZone) {
+        m_timeZone = (TimeZone)Preconditions.checkNotNull(timeZone, "timezone is null").clone();
+    }
+
+    public TimeZone getTimeZone() {
+        return (TimeZone)m_timeZone.clone();
+    }
+
+    private final static class Second {
+        private final long m_epochSecond;
+        private final byte [] m_prefix;
+        private final long m_shiftMicros;
+
+        private Second(long epochSecond, byte [] prefix, long shiftMicros) {
+            m_epochSecond = epochSecond;
+            m_prefix = prefix;
+            m_shiftMicros = shiftMicros;
+        }
+    }
+
+    private Second secondFor(long epochSecond) {
+        final int slot = (int)(epochSecond & (CACHED_SECONDS - 1));
+        Second second = m_seconds.get(slot);
+        if (second == null || second.m_epochSecond != epochSecond) {
+            long millis = epochSecond * 1000L;
+            long shift = m_timeZone.getOffset(millis) - m_defaultZone.getOffset(millis);
+            second = new Second(epochSecond, render(epochSecond), shift * 1000L);
+            m_seconds.set(slot, second);
+        }
+        return second;
+    }
+
+    private byte [] render(long epochSecond) {
+        Calendar cal = new GregorianCalendar(m_timeZone);
+        cal.setTimeInMillis(epochSecond * 1000L);
+        RecordBuffer buffer = new RecordBuffer(PREFIX_LENGTH);
+        buffer.appendPadded(cal.get(Calendar.YEAR), 4).append('-')
+              .appendPadded(cal.get(Calendar.MONTH) + 1, 2).append('-')
+              .appendPadded(cal.get(Calendar.DAY_OF_MONTH), 2).append(' ')
+              .appendPadded(cal.get(Calendar.HOUR_OF_DAY), 2).append(':')
+              .appendPadded(cal.get(Calendar.MINUTE), 2).append(':')
+              .appendPadded(cal.get(Calendar.SECOND), 2);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Appends the formatted rendition of the given microseconds since epoch
+     * timestamp to the given buffer
+     */
+    public RecordBuffer appendTo(RecordBuffer buffer, long micros) {
+        Second second = secondFor(Math.floorDiv(micros, 1000000L));
+        return buffer.append(second.m_prefix).append('.')
+                .appendPadded((int)Math.floorMod(micros, 1000000L), 6);
+    }
+
+    /**
+     * Shifts the given timestamp so that, when rendered in the JVM default
+     * timezone, it shows the same wall clock time it has in the configured
+     * timezone. This is how Hive interprets timestamps parsed from text.
+     */
+    public long toDefaultZone(long micros) {
+        return micros + secondFor(Math.floorDiv(micros, 1000000L)).m_shiftMicros;
+    }
+
+    public String format(long micros) {
+        RecordBuffer buffer = new RecordBuffer(PREFIX_LENGTH + 7);
+        appendTo(buffer, micros);
+        return new String(buffer.array(), 0, buffer.length(), StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public String toString() {
+        return "TimestampFormatter [timeZone=" + m_timeZone.getID() + "]";
+    }
+}
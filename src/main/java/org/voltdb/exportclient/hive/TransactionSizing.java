@@ -0,0 +1,124 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes the transaction batches of a partition stream, and the number of
+ * records committed per transaction, from the latencies the stream sees.
+ * <p>
+ * A batch is sized so that it lasts about a target time: a hot end point
+ * that uses up its batches quickly, or whose batches take long to open
+ * relative to how long they last, gets larger ones, while a cold end point
+ * gets smaller ones, so that it does not hold open transactions for long.
+ * <p>
+ * Transactions are sized so that writing their records takes about a
+ * target time, and at least ten times their begin and commit overhead,
+ * which bounds how much a failed transaction has to retry, without
+ * letting commits dominate on end points with cheap records.
+ */
+class TransactionSizing {
+    private final static HiveExportLogger LOG = new HiveExportLogger();
+
+    final static boolean ENABLED = !Boolean.getBoolean("HIVE_FIXED_TRANSACTION_SIZING");
+    final static int MIN_BATCH_SIZE = Integer.getInteger("HIVE_MIN_TRANSACTION_BATCH_SIZE", 8);
+    final static int MAX_BATCH_SIZE = Integer.getInteger("HIVE_MAX_TRANSACTION_BATCH_SIZE", 1024);
+    final static int BATCH_TARGET_SECONDS = Integer.getInteger("HIVE_TRANSACTION_BATCH_TARGET_SECONDS", 60);
+    final static int MIN_RECORDS = Integer.getInteger("HIVE_MIN_TRANSACTION_RECORDS", 1000);
+    final static int MAX_RECORDS = Integer.getInteger("HIVE_MAX_TRANSACTION_RECORDS", 500_000);
+    final static int TRANSACTION_TARGET_MS = Integer.getInteger("HIVE_TRANSACTION_TARGET_MS", 1000);
+
+    private final Object m_endPoint;
+    private int m_batchSize;
+    private int m_recordsPerTransaction;
+    private long m_batchOpenedAt = 0L;
+    private long m_batchOpenNanos = 0L;
+    private double m_recordNanos = 0.0;
+    private double m_commitNanos = 0.0;
+
+    TransactionSizing(Object endPoint, int initialBatchSize) {
+        m_endPoint = endPoint;
+        m_batchSize = ENABLED
+                ? Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, initialBatchSize))
+                : initialBatchSize;
+        m_recordsPerTransaction = ENABLED ? MAX_RECORDS : Integer.MAX_VALUE;
+    }
+
+    int getBatchSize() {
+        return m_batchSize;
+    }
+
+    int getRecordsPerTransaction() {
+        return m_recordsPerTransaction;
+    }
+
+    void batchOpened(long openNanos) {
+        m_batchOpenedAt = System.nanoTime();
+        m_batchOpenNanos = openNanos;
+    }
+
+    /**
+     * Resizes the next batches from how long the one that has just run out
+     * of transactions lasted
+     */
+    void batchUsedUp() {
+        if (!ENABLED || m_batchOpenedAt == 0L) return;
+
+        long lifetime = System.nanoTime() - m_batchOpenedAt;
+        long target = TimeUnit.SECONDS.toNanos(BATCH_TARGET_SECONDS);
+        int batchSize = m_batchSize;
+        if (lifetime < target >> 1 || m_batchOpenNanos * 20 > lifetime) {
+            batchSize = Math.min(MAX_BATCH_SIZE, batchSize << 1);
+        } else if (lifetime > target << 1) {
+            batchSize = Math.max(MIN_BATCH_SIZE, batchSize >> 1);
+        }
+        if (batchSize != m_batchSize) {
+            LOG.debug("Transaction batch size for %s went from %d to %d (batch lasted %d ms, opened in %d ms)",
+                    m_endPoint, m_batchSize, batchSize,
+                    TimeUnit.NANOSECONDS.toMillis(lifetime), TimeUnit.NANOSECONDS.toMillis(m_batchOpenNanos));
+            m_batchSize = batchSize;
+        }
+        m_batchOpenedAt = 0L;
+    }
+
+    void transactionCommitted(int records, long writeNanos, long overheadNanos) {
+        if (!ENABLED || records <= 0) return;
+
+        double recordNanos = (double)writeNanos / records;
+        m_recordNanos = m_recordNanos == 0.0 ? recordNanos : m_recordNanos + (recordNanos - m_recordNanos) / 8;
+        m_commitNanos = m_commitNanos == 0.0 ? overheadNanos : m_commitNanos + (overheadNanos - m_commitNanos) / 8;
+        if (m_recordNanos > 0.0) {
+            double target = Math.max(TimeUnit.MILLISECONDS.toNanos(TRANSACTION_TARGET_MS), m_commitNanos * 10);
+            m_recordsPerTransaction = (int)Math.max(MIN_RECORDS, Math.min(MAX_RECORDS, target / m_recordNanos));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionSizing [endPoint=" + m_endPoint + ", batchSize=" + m_batchSize
+                + ", recordsPerTransaction=" + m_recordsPerTransaction + "]";
+    }
+}
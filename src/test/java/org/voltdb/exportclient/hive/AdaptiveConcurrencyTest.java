@@ -0,0 +1,111 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptiveConcurrencyTest {
+
+    ThreadPoolExecutor m_executor;
+
+    @Before
+    public void setUp() {
+        // a single thread, and no queue, so that it rejects tasks while busy
+        m_executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>());
+    }
+
+    @After
+    public void tearDown() {
+        m_executor.shutdownNow();
+    }
+
+    @Test
+    public void testBoundsRunningTasks() throws Exception {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(m_executor, 1, 1, 1, 1000);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(2);
+        for (int i = 0; i < 2; ++i) {
+            concurrency.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ignoreIt) {
+                    }
+                    ran.countDown();
+                }
+            });
+        }
+        assertEquals(1, concurrency.getRunning());
+        assertEquals(1, concurrency.getQueueDepth());
+
+        release.countDown();
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        assertEquals(0, concurrency.getQueueDepth());
+    }
+
+    @Test
+    public void testRejectedTasksAreNotDropped() throws Exception {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(m_executor, 4, 1, 4, 1000);
+        final CountDownLatch release = new CountDownLatch(1);
+        concurrency.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignoreIt) {
+                }
+            }
+        });
+
+        final AtomicReference<Thread> ranOn = new AtomicReference<>();
+        concurrency.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+        });
+        assertEquals(Thread.currentThread(), ranOn.get());
+        assertEquals(1, concurrency.getRunning());
+
+        release.countDown();
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (concurrency.getRunning() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, concurrency.getRunning());
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class DerivedPartitionTest {
+
+    static long micros(String instant) {
+        return Instant.parse(instant).toEpochMilli() * 1000L;
+    }
+
+    static DerivedPartition.Bucketer bucketer(String granularity, String timeZone) {
+        return DerivedPartition.parse(granularity + "(TS)").bucketer(TimeZone.getTimeZone(timeZone));
+    }
+
+    @Test
+    public void testParse() {
+        DerivedPartition derived = DerivedPartition.parse(" day ( TS ) ");
+        assertEquals("TS", derived.getColumn());
+        assertEquals(DerivedPartition.Granularity.DAY, derived.getGranularity());
+        assertNull(DerivedPartition.parse("TS"));
+        try {
+            DerivedPartition.parse("week(TS)");
+            fail("parsed an unknown granularity");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testBucketBoundaries() {
+        DerivedPartition.Bucketer day = bucketer("day", "UTC");
+        long midnight = micros("2018-07-01T00:00:00Z");
+        assertEquals("2018-06-30", day.valueOf(midnight - 1));
+        assertEquals("2018-07-01", day.valueOf(midnight));
+        assertEquals("2018-06-30", day.valueOf(midnight - 1));
+        assertEquals("2018-07-01", day.valueOf(micros("2018-07-01T23:59:59.999Z") + 999));
+        assertEquals("2018-07-02", day.valueOf(micros("2018-07-02T00:00:00Z")));
+
+        DerivedPartition.Bucketer month = bucketer("month", "UTC");
+        assertEquals("2018-06", month.valueOf(midnight - 1));
+        assertEquals("2018-07", month.valueOf(midnight));
+        assertEquals("2018-07", month.valueOf(micros("2018-07-31T23:59:59Z")));
+        assertEquals("2018-08", month.valueOf(micros("2018-08-01T00:00:00Z")));
+
+        DerivedPartition.Bucketer year = bucketer("year", "UTC");
+        long newYear = micros("2019-01-01T00:00:00Z");
+        assertEquals("2018", year.valueOf(newYear - 1));
+        assertEquals("2019", year.valueOf(newYear));
+
+        DerivedPartition.Bucketer hour = bucketer("hour", "UTC");
+        long oneOClock = micros("2018-07-01T01:00:00Z");
+        assertEquals("2018-07-01-00", hour.valueOf(oneOClock - 1));
+        assertEquals("2018-07-01-01", hour.valueOf(oneOClock));
+        assertEquals("2018-07-01-00", hour.valueOf(oneOClock - 1));
+    }
+
+    @Test
+    public void testNegativeMicroseconds() {
+        DerivedPartition.Bucketer day = bucketer("day", "UTC");
+        assertEquals("1970-01-01", day.valueOf(0));
+        // a microsecond before the epoch is in the millisecond before it, not the one at it
+        assertEquals("1969-12-31", day.valueOf(-1));
+        assertEquals("1969-12-31", day.valueOf(-999));
+        assertEquals("1969-12-31", day.valueOf(micros("1969-12-31T00:00:00Z")));
+        assertEquals("1969-12-30", day.valueOf(micros("1969-12-31T00:00:00Z") - 1));
+
+        DerivedPartition.Bucketer hour = bucketer("hour", "UTC");
+        assertEquals("1970-01-01-00", hour.valueOf(0));
+        assertEquals("1969-12-31-23", hour.valueOf(-1));
+    }
+
+    @Test
+    public void testDaylightSavingFallBackHour() {
+        // on 2018-11-04, New York wall clocks go from 01:59:59 EDT back to 01:00:00 EST
+        DerivedPartition.Bucketer hour = bucketer("hour", "America/New_York");
+        long firstOne = micros("2018-11-04T05:00:00Z");
+        long secondOne = micros("2018-11-04T06:00:00Z");
+        assertEquals("2018-11-04-00", hour.valueOf(firstOne - 1));
+        assertEquals("2018-11-04-01", hour.valueOf(firstOne));
+        assertEquals("2018-11-04-01", hour.valueOf(secondOne - 1));
+        assertEquals("2018-11-04-01", hour.valueOf(secondOne));
+        assertEquals("2018-11-04-01", hour.valueOf(micros("2018-11-04T06:59:59Z")));
+        assertEquals("2018-11-04-02", hour.valueOf(micros("2018-11-04T07:00:00Z")));
+        assertEquals("2018-11-04-01", hour.valueOf(firstOne));
+
+        // and that day lasts 25 hours
+        DerivedPartition.Bucketer day = bucketer("day", "America/New_York");
+        assertEquals("2018-11-03", day.valueOf(micros("2018-11-04T04:00:00Z") - 1));
+        assertEquals("2018-11-04", day.valueOf(micros("2018-11-04T04:00:00Z")));
+        assertEquals("2018-11-04", day.valueOf(micros("2018-11-05T04:59:59Z")));
+        assertEquals("2018-11-05", day.valueOf(micros("2018-11-05T05:00:00Z")));
+    }
+
+    @Test
+    public void testTimeZonesOffByFractionsOfAnHour() {
+        // Kolkata is 5:30 ahead of UTC
+        DerivedPartition.Bucketer hour = bucketer("hour", "Asia/Kolkata");
+        assertEquals("2018-07-01-05", hour.valueOf(micros("2018-07-01T00:29:59Z")));
+        assertEquals("2018-07-01-06", hour.valueOf(micros("2018-07-01T00:30:00Z")));
+        DerivedPartition.Bucketer day = bucketer("day", "Asia/Kolkata");
+        assertEquals("2018-07-01", day.valueOf(micros("2018-06-30T18:30:00Z")));
+        assertEquals("2018-06-30", day.valueOf(micros("2018-06-30T18:30:00Z") - 1));
+
+        // Kathmandu is 5:45 ahead of UTC
+        hour = bucketer("hour", "Asia/Kathmandu");
+        assertEquals("2018-07-01-05", hour.valueOf(micros("2018-07-01T00:14:59Z")));
+        assertEquals("2018-07-01-06", hour.valueOf(micros("2018-07-01T00:15:00Z")));
+        assertEquals("2018-07-01-06", hour.valueOf(micros("2018-07-01T01:14:59Z")));
+        assertEquals("2018-07-01-07", hour.valueOf(micros("2018-07-01T01:15:00Z")));
+
+        // Chatham is 12:45 ahead of UTC in standard time, and 13:45 in daylight saving time
+        day = bucketer("day", "Pacific/Chatham");
+        assertEquals("2018-07-02", day.valueOf(micros("2018-07-01T11:15:00Z")));
+        assertEquals("2018-07-01", day.valueOf(micros("2018-07-01T11:15:00Z") - 1));
+    }
+
+    @Test
+    public void testCachedBucketsMatchUncachedFormatting() {
+        Random random = new Random(1789);
+        String [] timeZones = {"UTC", "America/New_York", "Asia/Kathmandu", "Australia/Lord_Howe"};
+        for (DerivedPartition.Granularity granularity: DerivedPartition.Granularity.values()) {
+            for (String timeZone: timeZones) {
+                DerivedPartition.Bucketer bucketer = bucketer(granularity.name(), timeZone);
+                SimpleDateFormat reference = new SimpleDateFormat(granularity.m_pattern);
+                reference.setTimeZone(TimeZone.getTimeZone(timeZone));
+                long micros = micros("2018-01-01T00:00:00Z") - 1000L * 1000L * 86400L * 400L;
+                for (int i = 0; i < 20_000; ++i) {
+                    // mostly small steps that stay in the cached bucket, and now and then a jump back
+                    micros += random.nextInt(20) == 0
+                            ? -random.nextInt(100_000_000) * 1000L
+                            : random.nextInt(200_000) * 1000L * 10L + random.nextInt(1000);
+                    String expected = reference.format(new Date(Math.floorDiv(micros, 1000L)));
+                    assertEquals(granularity + " " + timeZone + " at " + micros, expected, bucketer.valueOf(micros));
+                }
+            }
+        }
+    }
+}
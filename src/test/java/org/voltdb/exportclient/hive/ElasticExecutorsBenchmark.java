@@ -0,0 +1,180 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.voltcore.utils.CoreUtils;
+
+import com.google_voltpatches.common.util.concurrent.Futures;
+import com.google_voltpatches.common.util.concurrent.ListenableFuture;
+import com.google_voltpatches.common.util.concurrent.ListeningExecutorService;
+import com.google_voltpatches.common.util.concurrent.SettableFuture;
+
+/**
+ * Compares the throughput and thread count of the elastic threading mode
+ * against platform threads, for many decoders writing to end points that
+ * block on I/O. Decoders either each get a dedicated thread, or borrow
+ * threads from the elastic pool. Writers either run on a pool sized for
+ * the maximum number of concurrent writers, or on a pool sized to the
+ * core count that compensates for writers blocked on I/O.
+ * <p>
+ * It is not run as part of the test suite. Run its main with the test
+ * class path, optionally with these system properties:
+ * <ul>
+ * <li>{@code decoders} (256) number of decoders</li>
+ * <li>{@code blocks} (20) number of blocks each decoder processes</li>
+ * <li>{@code endpoints} (4) number of end points each block writes to</li>
+ * <li>{@code write.ms} (20) time an end point write blocks on I/O</li>
+ * <li>{@code decode.us} (200) time spent decoding a block</li>
+ * </ul>
+ */
+public class ElasticExecutorsBenchmark {
+
+    final static int DECODERS = Integer.getInteger("decoders", 256);
+    final static int BLOCKS = Integer.getInteger("blocks", 20);
+    final static int ENDPOINTS = Integer.getInteger("endpoints", 4);
+    final static int WRITE_MS = Integer.getInteger("write.ms", 20);
+    final static int DECODE_US = Integer.getInteger("decode.us", 200);
+
+    final boolean m_elastic;
+    final ExecutorService m_writers;
+
+    ElasticExecutorsBenchmark(boolean elastic) {
+        m_elastic = elastic;
+        m_writers = elastic
+                ? new ForkJoinPool(Runtime.getRuntime().availableProcessors())
+                : new ForkJoinPool(AdaptiveConcurrency.MAX_WRITERS);
+    }
+
+    static void spin(long micros) {
+        final long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros);
+        while (System.nanoTime() < deadline) {
+        }
+    }
+
+    ListenableFuture<?> write() {
+        final SettableFuture<Object> written = SettableFuture.create();
+        final Runnable io = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(WRITE_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        m_writers.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (m_elastic) {
+                    ElasticExecutors.runBlocking(io);
+                } else {
+                    io.run();
+                }
+                written.set(null);
+            }
+        });
+        return written;
+    }
+
+    ListeningExecutorService decoder(int id) {
+        String name = "Benchmark Decoder " + id;
+        return m_elastic
+                ? ElasticExecutors.serial(name)
+                : CoreUtils.getListeningSingleThreadExecutor(name, CoreUtils.MEDIUM_STACK_SIZE);
+    }
+
+    /**
+     * @return the elapsed time in nanoseconds
+     */
+    long run() throws Exception {
+        List<ListeningExecutorService> decoders = new ArrayList<>(DECODERS);
+        for (int d = 0; d < DECODERS; ++d) {
+            decoders.add(decoder(d));
+        }
+        final long start = System.nanoTime();
+        List<Future<?>> blocks = new ArrayList<>(DECODERS * BLOCKS);
+        for (int b = 0; b < BLOCKS; ++b) {
+            for (ListeningExecutorService decoder: decoders) {
+                blocks.add(decoder.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        spin(DECODE_US);
+                        List<ListenableFuture<?>> writes = new ArrayList<>(ENDPOINTS);
+                        for (int e = 0; e < ENDPOINTS; ++e) {
+                            writes.add(write());
+                        }
+                        Futures.getUnchecked(Futures.allAsList(writes));
+                    }
+                }));
+            }
+        }
+        for (Future<?> block: blocks) {
+            block.get();
+        }
+        final long elapsed = System.nanoTime() - start;
+        for (ListeningExecutorService decoder: decoders) {
+            decoder.shutdown();
+            decoder.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        m_writers.shutdown();
+        m_writers.awaitTermination(1, TimeUnit.MINUTES);
+        return elapsed;
+    }
+
+    static void measure(String mode, boolean elastic, boolean report) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        final int baseline = threads.getThreadCount();
+        long elapsed = new ElasticExecutorsBenchmark(elastic).run();
+        if (!report) return;
+        double seconds = elapsed / 1e9;
+        System.out.printf("%-8s %10.0f blocks/s %10.0f writes/s %8d peak added threads %8.2f s%n",
+                mode, DECODERS * BLOCKS / seconds, DECODERS * BLOCKS * ENDPOINTS / seconds,
+                threads.getPeakThreadCount() - baseline, seconds);
+    }
+
+    public static void main(String [] args) throws Exception {
+        // must be set before the elastic executors are loaded, for writers to compensate blocking
+        System.setProperty("HIVE_ELASTIC_THREADS", "true");
+        System.out.printf("%d decoders, %d blocks each, %d end points per block, %d ms writes, %d us decodes%n",
+                DECODERS, BLOCKS, ENDPOINTS, WRITE_MS, DECODE_US);
+        measure("platform", false, false);
+        measure("elastic", true, false);
+        for (int i = 0; i < 3; ++i) {
+            measure("platform", false, true);
+            measure("elastic", true, true);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google_voltpatches.common.util.concurrent.ListeningExecutorService;
+
+public class ElasticExecutorsTest {
+
+    @Test
+    public void testSerialExecutorRunsTasksInOrder() throws Exception {
+        ListeningExecutorService es = ElasticExecutors.serial("Serial Test");
+        final List<Integer> ran = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            final int task = i;
+            es.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.add(task);
+                }
+            });
+        }
+        es.shutdown();
+        assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1000, ran.size());
+        for (int i = 0; i < ran.size(); ++i) {
+            assertEquals(i, ran.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testSerialExecutorOutlivesTasksThatThrowErrors() throws Exception {
+        ListeningExecutorService es = ElasticExecutors.serial("Serial Error Test");
+        final CountDownLatch ran = new CountDownLatch(2);
+        es.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new AssertionError("thrown on purpose");
+            }
+        });
+        for (int i = 0; i < 2; ++i) {
+            es.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            });
+        }
+        assertTrue("tasks after an error did not run", ran.await(10, TimeUnit.SECONDS));
+
+        final CountDownLatch later = new CountDownLatch(1);
+        es.execute(new Runnable() {
+            @Override
+            public void run() {
+                later.countDown();
+            }
+        });
+        assertTrue("executor is wedged", later.await(10, TimeUnit.SECONDS));
+        es.shutdown();
+        assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSerialExecutorShutdownNowInterruptsTheRunningTask() throws Exception {
+        ListeningExecutorService es = ElasticExecutors.serial("Serial Interrupt Test");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        es.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        es.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        assertEquals(1, es.shutdownNow().size());
+        assertTrue("running task was not interrupted", interrupted.await(10, TimeUnit.SECONDS));
+        assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.voltdb.VoltType;
+import org.voltdb.export.AdvertisedDataSource;
+import org.voltdb.exportclient.ExportDecoderBase;
+import org.voltdb.types.TimestampType;
+
+import com.google_voltpatches.common.collect.ImmutableList;
+
+public class ExportRowReaderTest {
+
+    final static List<VoltType> TYPES = ImmutableList.of(
+            VoltType.TINYINT, VoltType.SMALLINT, VoltType.INTEGER, VoltType.BIGINT,
+            VoltType.FLOAT, VoltType.TIMESTAMP, VoltType.STRING, VoltType.VARBINARY,
+            VoltType.DECIMAL
+            );
+
+    final static Object [][] ROWS = new Object[][] {
+        {
+            (byte)1, (short)2, 3, 4L, 5.5D, new TimestampType(6L), "seven",
+            new byte[] {8, 8}, new BigDecimal("9.000000000000")
+        },
+        {
+            (byte)(Byte.MIN_VALUE + 1), (short)(Short.MIN_VALUE + 1), Integer.MIN_VALUE + 1, Long.MIN_VALUE + 1,
+            -Double.MAX_VALUE, new TimestampType(-1L), "", new byte[0],
+            new BigDecimal("-99999999999999999999999999.999999999999")
+        },
+        {
+            Byte.MAX_VALUE, Short.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE,
+            Double.MIN_VALUE, new TimestampType(Long.MAX_VALUE), new String(new int[] {0x68, 0xe9, 0x6c, 0x20ac, 0x1f600}, 0, 5),
+            new byte[] {-1, 0, 1, 127, -128}, new BigDecimal("0.000000000001")
+        },
+        {
+            null, null, null, null, null, null, null, null, null
+        },
+        {
+            null, (short)-300, null, 1L << 40, null, new TimestampType(1_500_000_000_000_000L),
+            null, new byte[] {42}, null
+        },
+        {
+            (byte)-7, null, -70000, null, 0.1D, null, "only strings", null,
+            new BigDecimal("123456.789000000000")
+        },
+    };
+
+    static class Decoder extends ExportDecoderBase {
+        Decoder(AdvertisedDataSource source) {
+            super(source);
+        }
+
+        @Override
+        public boolean processRow(int rowSize, byte[] rowData) throws RestartBlockException {
+            return false;
+        }
+
+        @Override
+        public void sourceNoLongerAdvertised(AdvertisedDataSource source) {
+        }
+    }
+
+    static Decoder decoderFor(List<VoltType> types) {
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<Integer> lengths = new ArrayList<>();
+        for (int i = 0; i < types.size(); ++i) {
+            names.add("C" + i);
+            lengths.add(types.get(i).isVariableLength() ? 1024 : types.get(i).getLengthInBytesForFixedTypes());
+        }
+        AdvertisedDataSource source = new AdvertisedDataSource(
+                0, "signature", "TABLE", "C0", 0L, 0L,
+                names, new ArrayList<>(types), lengths,
+                AdvertisedDataSource.ExportFormat.SEVENDOTX
+                );
+        return new Decoder(source);
+    }
+
+    /**
+     * Serializes the given values the same way the export stream does
+     */
+    static byte [] serialize(List<VoltType> types, Object [] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        byte [] nullFlags = new byte[(types.size() + 7) >> 3];
+        for (int i = 0; i < types.size(); ++i) {
+            if (values[i] == null) nullFlags[i >> 3] |= 0x80 >>> (i & 7);
+        }
+        buffer.put(nullFlags);
+        for (int i = 0; i < types.size(); ++i) {
+            if (values[i] == null) continue;
+            switch (types.get(i)) {
+            case TINYINT:
+                buffer.put((Byte)values[i]);
+                break;
+            case SMALLINT:
+                buffer.putShort((Short)values[i]);
+                break;
+            case INTEGER:
+                buffer.putInt((Integer)values[i]);
+                break;
+            case BIGINT:
+                buffer.putLong((Long)values[i]);
+                break;
+            case FLOAT:
+                buffer.putDouble((Double)values[i]);
+                break;
+            case TIMESTAMP:
+                buffer.putLong(((TimestampType)values[i]).getTime());
+                break;
+            case STRING:
+                byte [] string = ((String)values[i]).getBytes(StandardCharsets.UTF_8);
+                buffer.putInt(string.length).put(string);
+                break;
+            case VARBINARY:
+                byte [] bytes = (byte[])values[i];
+                buffer.putInt(bytes.length).put(bytes);
+                break;
+            case DECIMAL:
+                BigDecimal decimal = (BigDecimal)values[i];
+                byte [] unscaled = decimal.unscaledValue().toByteArray();
+                buffer.put((byte)decimal.scale()).put((byte)unscaled.length).put(unscaled);
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported type " + types.get(i));
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    static void assertSameValue(String message, Object expected, Object actual) {
+        if (expected instanceof byte[]) {
+            assertTrue(message, actual instanceof byte[]);
+            assertArrayEquals(message, (byte[])expected, (byte[])actual);
+        } else {
+            assertEquals(message, expected, actual);
+        }
+    }
+
+    @Test
+    public void testReadsRowsLikeTheExportDecoder() throws Exception {
+        Decoder decoder = decoderFor(TYPES);
+        ExportRowReader reader = new ExportRowReader(TYPES);
+        for (Object [] values: ROWS) {
+            byte [] row = serialize(TYPES, values);
+            Object [] decoded = decoder.decodeRow(row).values;
+            assertTrue(reader.wrap(row).array() == row);
+
+            assertEquals(TYPES.size(), reader.getColumnCount());
+            for (int i = 0; i < TYPES.size(); ++i) {
+                String message = "column " + i + " of " + Arrays.deepToString(values);
+                assertSameValue(message, values[i], reader.getObject(i));
+                assertSameValue(message, decoded[i], reader.getObject(i));
+                assertEquals(message, decoded[i] == null, reader.isNull(i));
+            }
+        }
+    }
+
+    @Test
+    public void testReadsColumnsInPlace() throws Exception {
+        Decoder decoder = decoderFor(TYPES);
+        ExportRowReader reader = new ExportRowReader(TYPES);
+        for (Object [] values: ROWS) {
+            byte [] row = serialize(TYPES, values);
+            Object [] decoded = decoder.decodeRow(row).values;
+            reader.wrap(row);
+            for (int i = 0; i < TYPES.size(); ++i) {
+                if (decoded[i] == null) continue;
+                String message = "column " + i + " of " + Arrays.deepToString(values);
+                switch (TYPES.get(i)) {
+                case TINYINT:
+                case SMALLINT:
+                case INTEGER:
+                case BIGINT:
+                    assertEquals(message, ((Number)decoded[i]).longValue(), reader.getLong(i));
+                    break;
+                case FLOAT:
+                    assertEquals(message,
+                            Double.doubleToRawLongBits((Double)decoded[i]),
+                            Double.doubleToRawLongBits(reader.getDouble(i)));
+                    break;
+                case TIMESTAMP:
+                    assertEquals(message, ((TimestampType)decoded[i]).getTime(), reader.getTimestamp(i));
+                    break;
+                case STRING:
+                    assertEquals(message, decoded[i], reader.getString(i));
+                    byte [] utf8 = ((String)decoded[i]).getBytes(StandardCharsets.UTF_8);
+                    assertEquals(message, utf8.length, reader.length(i));
+                    assertArrayEquals(message, utf8,
+                            Arrays.copyOfRange(row, reader.offset(i), reader.offset(i) + reader.length(i)));
+                    break;
+                case VARBINARY:
+                    assertArrayEquals(message, (byte[])decoded[i], reader.getBytes(i));
+                    assertEquals(message, ((byte[])decoded[i]).length, reader.length(i));
+                    break;
+                case DECIMAL:
+                    assertEquals(message, decoded[i], reader.getDecimal(i));
+                    break;
+                default:
+                    fail("unexpected type " + TYPES.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testColumnsOutsideOfTheRowAreNull() throws Exception {
+        ExportRowReader reader = new ExportRowReader(TYPES);
+        reader.wrap(serialize(TYPES, ROWS[0]));
+        assertTrue(reader.isNull(-1));
+        assertTrue(reader.isNull(TYPES.size()));
+        assertEquals(null, reader.getObject(TYPES.size()));
+        assertFalse(reader.isNull(0));
+    }
+
+    @Test
+    public void testRejectsTruncatedRows() throws Exception {
+        Decoder decoder = decoderFor(TYPES);
+        ExportRowReader reader = new ExportRowReader(TYPES);
+        for (Object [] values: ROWS) {
+            byte [] row = serialize(TYPES, values);
+            for (int length = 0; length < row.length; ++length) {
+                byte [] truncated = Arrays.copyOf(row, length);
+                String message = "row " + Arrays.deepToString(values) + " truncated to " + length;
+                try {
+                    reader.wrap(truncated);
+                    fail(message + " was read");
+                } catch (IOException expected) {
+                }
+                try {
+                    decoder.decodeRow(truncated);
+                    fail(message + " was decoded");
+                } catch (Exception expected) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsNegativeLengths() throws Exception {
+        List<VoltType> types = ImmutableList.of(VoltType.STRING);
+        byte [] row = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN).put((byte)0).putInt(-2).array();
+        try {
+            new ExportRowReader(types).wrap(row);
+            fail("negative string length was read");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testSupportedTypes() throws Exception {
+        assertTrue(ExportRowReader.supports(TYPES));
+        assertFalse(ExportRowReader.supports(ImmutableList.of(VoltType.BIGINT, VoltType.GEOGRAPHY)));
+        assertFalse(ExportRowReader.supports(ImmutableList.of(VoltType.GEOGRAPHY_POINT)));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hive.hcatalog.streaming.HiveEndPoint;
+import org.junit.Test;
+
+public class HiveEndPointFactoryTest {
+
+    final static String URI = "thrift://localhost:9083";
+
+    @Test
+    public void testEndPointsAreCanonical() {
+        HiveEndPointFactory factory = new HiveEndPointFactory(URI, "db", "table");
+        HiveEndPoint endPoint = factory.endPointFor(Arrays.asList("a", "b"));
+        assertTrue(endPoint == factory.endPointFor(Arrays.asList("a", "b")));
+        assertTrue(endPoint == factory.lookup(2).set(0, "a").set(1, "b").endPoint());
+        assertFalse(endPoint.equals(factory.endPointFor(Arrays.asList("a", "c"))));
+    }
+
+    @Test
+    public void testEqualityIsSymmetricWithPlainEndPoints() {
+        HiveEndPointFactory factory = new HiveEndPointFactory(URI, "db", "table");
+        List<String> partitionValues = Arrays.asList("a");
+        HiveEndPoint canonical = factory.endPointFor(partitionValues);
+        HiveEndPoint plain = new HiveEndPoint(URI, "db", "table", partitionValues);
+        assertFalse(canonical.equals(plain));
+        assertFalse(plain.equals(canonical));
+    }
+
+    @Test
+    public void testRecordFormatsAreKeptApart() {
+        List<String> partitionValues = Arrays.asList("a");
+        HiveEndPoint json = new HiveEndPointFactory(URI, "db", "table", RecordFormat.JSON)
+                .endPointFor(partitionValues);
+        HiveEndPoint sameJson = new HiveEndPointFactory(URI, "db", "table", RecordFormat.JSON)
+                .endPointFor(partitionValues);
+        HiveEndPoint delimited = new HiveEndPointFactory(URI, "db", "table", RecordFormat.DELIMITED)
+                .endPointFor(partitionValues);
+        assertEquals(json, sameJson);
+        assertEquals(json.hashCode(), sameJson.hashCode());
+        assertNotEquals(json, delimited);
+        assertNotEquals(delimited, json);
+    }
+
+    @Test
+    public void testCacheEvictsLeastRecentlyUsedEndPoints() {
+        HiveEndPointFactory factory = new HiveEndPointFactory(URI, "db", "table");
+        HiveEndPoint hot = factory.endPointFor(Arrays.asList("hot"));
+        HiveEndPoint cold = factory.endPointFor(Arrays.asList("cold"));
+        for (int i = 0; i < 2 * HiveEndPointFactory.ENDPOINT_CACHE_SIZE; ++i) {
+            factory.endPointFor(Arrays.asList(Integer.toString(i)));
+            assertTrue("recently used end point was evicted", hot == factory.endPointFor(Arrays.asList("hot")));
+        }
+        HiveEndPoint recreated = factory.endPointFor(Arrays.asList("cold"));
+        assertFalse("cache is not bounded", cold == recreated);
+        assertEquals(cold, recreated);
+        assertEquals(cold.hashCode(), recreated.hashCode());
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hive.hcatalog.streaming.HiveEndPoint;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google_voltpatches.common.util.concurrent.Futures;
+import com.google_voltpatches.common.util.concurrent.ListenableFuture;
+
+public class HiveSinkTest {
+
+    HiveEndPointFactory m_factory;
+    HiveConnectionPool m_pool;
+    HiveSink m_sink;
+    HiveConnectionPool.EvictionListener m_evictionListener;
+
+    final ConcurrentMap<HiveEndPoint, List<String>> m_written = new ConcurrentHashMap<>();
+    final ConcurrentMap<HiveEndPoint, AtomicInteger> m_writing = new ConcurrentHashMap<>();
+    final ConcurrentMap<HiveEndPoint, AtomicInteger> m_commits = new ConcurrentHashMap<>();
+    final AtomicInteger m_overlaps = new AtomicInteger(0);
+
+    /** the end point of the stream write in progress on the current thread */
+    final ThreadLocal<HiveEndPoint> m_writeEndPoint = new ThreadLocal<>();
+    /** what each stream write does, after recording its records */
+    volatile Runnable m_onWrite = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        m_factory = new HiveEndPointFactory("thrift://localhost:9083", "db", "table");
+        m_pool = mock(HiveConnectionPool.class);
+        when(m_pool.get(any(HiveEndPoint.class))).thenAnswer(new Answer<HivePartitionStream>() {
+            @Override
+            public HivePartitionStream answer(InvocationOnMock invocation) throws Throwable {
+                return streamFor((HiveEndPoint)invocation.getArgument(0));
+            }
+        });
+        m_sink = new HiveSink(m_pool);
+        ArgumentCaptor<HiveConnectionPool.EvictionListener> listener =
+                ArgumentCaptor.forClass(HiveConnectionPool.EvictionListener.class);
+        verify(m_pool).setEvictionListener(listener.capture());
+        m_evictionListener = listener.getValue();
+    }
+
+    HivePartitionStream streamFor(final HiveEndPoint endPoint) {
+        m_written.putIfAbsent(endPoint, Collections.synchronizedList(new ArrayList<String>()));
+        m_writing.putIfAbsent(endPoint, new AtomicInteger(0));
+        m_commits.putIfAbsent(endPoint, new AtomicInteger(0));
+        HivePartitionStream stream = mock(HivePartitionStream.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                m_commits.get(endPoint).incrementAndGet();
+                AtomicInteger writing = m_writing.get(endPoint);
+                if (writing.incrementAndGet() > 1) {
+                    m_overlaps.incrementAndGet();
+                }
+                try {
+                    Collection<byte[]> records = invocation.getArgument(0);
+                    for (byte [] record: records) {
+                        m_written.get(endPoint).add(new String(record, StandardCharsets.UTF_8));
+                    }
+                    m_writeEndPoint.set(endPoint);
+                    m_onWrite.run();
+                } finally {
+                    m_writeEndPoint.remove();
+                    writing.decrementAndGet();
+                }
+                return null;
+            }
+        }).when(stream).write(ArgumentMatchers.<Collection<byte[]>>any());
+        return stream;
+    }
+
+    HiveEndPoint endPoint(int i) {
+        return m_factory.endPointFor(Arrays.asList("p" + i));
+    }
+
+    static List<byte[]> records(String... values) {
+        List<byte[]> records = new ArrayList<>(values.length);
+        for (String value: values) {
+            records.add(value.getBytes(StandardCharsets.UTF_8));
+        }
+        return records;
+    }
+
+    @Test
+    public void testWritesToAnEndPointAreCommittedInOrder() throws Exception {
+        m_onWrite = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(2));
+                } catch (InterruptedException ignoreIt) {
+                }
+            }
+        };
+        final int endPoints = 4;
+        final int writes = 200;
+        List<ListenableFuture<?>> committed = new ArrayList<>();
+        for (int w = 0; w < writes; ++w) {
+            for (int e = 0; e < endPoints; ++e) {
+                committed.add(m_sink.asWriteTask(endPoint(e), records(w + "a", w + "b")));
+            }
+        }
+        Futures.allAsList(committed).get(30, TimeUnit.SECONDS);
+
+        assertEquals(0, m_overlaps.get());
+        for (int e = 0; e < endPoints; ++e) {
+            List<String> expected = new ArrayList<>();
+            for (int w = 0; w < writes; ++w) {
+                expected.add(w + "a");
+                expected.add(w + "b");
+            }
+            assertEquals(expected, m_written.get(endPoint(e)));
+        }
+    }
+
+    @Test
+    public void testEndPointsAreCommittedInParallel() throws Exception {
+        final int endPoints = HiveSink.HIVE_CONCURRENT_WRITERS;
+        final CountDownLatch writing = new CountDownLatch(endPoints);
+        final AtomicInteger together = new AtomicInteger(0);
+        m_onWrite = new Runnable() {
+            @Override
+            public void run() {
+                writing.countDown();
+                try {
+                    if (writing.await(10, TimeUnit.SECONDS)) {
+                        together.incrementAndGet();
+                    }
+                } catch (InterruptedException ignoreIt) {
+                }
+            }
+        };
+        List<ListenableFuture<?>> committed = new ArrayList<>();
+        for (int e = 0; e < endPoints; ++e) {
+            committed.add(m_sink.asWriteTask(endPoint(e), records("only")));
+        }
+        Futures.allAsList(committed).get(30, TimeUnit.SECONDS);
+
+        assertEquals("end point writes did not all overlap", endPoints, together.get());
+        assertEquals(0, m_overlaps.get());
+    }
+
+    @Test
+    public void testSkewedEndPointsAreCommittedInParallel() throws Exception {
+        // hot end points that all hashed onto the same writer when writers were pinned by end point
+        final int writers = HiveSink.HIVE_CONCURRENT_WRITERS;
+        final List<HiveEndPoint> hot = new ArrayList<>();
+        HiveEndPoint cold = null;
+        for (int i = 0; hot.size() < writers - 1 || cold == null; ++i) {
+            HiveEndPoint endPoint = endPoint(i);
+            if (Math.abs(endPoint.partitionVals.hashCode() % writers) != 0) {
+                if (cold == null) cold = endPoint;
+            } else if (hot.size() < writers - 1) {
+                hot.add(endPoint);
+            }
+        }
+        final Set<HiveEndPoint> hotEndPoints = new HashSet<>(hot);
+        final CountDownLatch hotWriting = new CountDownLatch(hot.size());
+        final CountDownLatch release = new CountDownLatch(1);
+        m_onWrite = new Runnable() {
+            @Override
+            public void run() {
+                if (!hotEndPoints.contains(m_writeEndPoint.get())) return;
+                hotWriting.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignoreIt) {
+                }
+            }
+        };
+        final int writes = 50;
+        List<ListenableFuture<?>> committed = new ArrayList<>();
+        for (int w = 0; w < writes; ++w) {
+            for (HiveEndPoint endPoint: hot) {
+                committed.add(m_sink.asWriteTask(endPoint, records("hot" + w)));
+            }
+        }
+        assertTrue("hot end points were not committed in parallel", hotWriting.await(10, TimeUnit.SECONDS));
+
+        // while every hot end point is held up, a cold one still makes progress
+        m_sink.asWriteTask(cold, records("cold")).get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("cold"), m_written.get(cold));
+
+        release.countDown();
+        Futures.allAsList(committed).get(30, TimeUnit.SECONDS);
+        for (HiveEndPoint endPoint: hot) {
+            assertEquals(writes, m_written.get(endPoint).size());
+        }
+        assertEquals(0, m_overlaps.get());
+    }
+
+    @Test
+    public void testPendingWritesToAnEndPointAreCommittedTogether() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        m_onWrite = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignoreIt) {
+                }
+            }
+        };
+        HiveEndPoint endPoint = endPoint(0);
+        List<ListenableFuture<?>> committed = new ArrayList<>();
+        committed.add(m_sink.asWriteTask(endPoint, records("first")));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int w = 0; w < 10; ++w) {
+            committed.add(m_sink.asWriteTask(endPoint, records("next" + w)));
+        }
+        release.countDown();
+        Futures.allAsList(committed).get(30, TimeUnit.SECONDS);
+
+        assertEquals(11, m_written.get(endPoint).size());
+        assertEquals(2, m_commits.get(endPoint).get());
+    }
+
+    @Test
+    public void testIdleQueuesAreRetiredWithTheirStreams() throws Exception {
+        m_sink.asWriteTask(endPoint(0), records("a")).get(10, TimeUnit.SECONDS);
+        m_sink.asWriteTask(endPoint(1), records("b")).get(10, TimeUnit.SECONDS);
+        assertEquals(2, m_sink.getEndPointQueueCount());
+
+        // the writer may still be winding down after completing the write
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (m_sink.getEndPointQueueCount() > 1 && System.currentTimeMillis() < deadline) {
+            m_evictionListener.evicted(endPoint(0));
+            Thread.sleep(1);
+        }
+        assertEquals(1, m_sink.getEndPointQueueCount());
+
+        m_sink.asWriteTask(endPoint(0), records("c")).get(10, TimeUnit.SECONDS);
+        assertEquals(2, m_sink.getEndPointQueueCount());
+        assertEquals(Arrays.asList("a", "c"), m_written.get(endPoint(0)));
+    }
+
+    @Test
+    public void testBusyQueuesAreNotRetired() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        m_onWrite = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignoreIt) {
+                }
+            }
+        };
+        HiveEndPoint endPoint = endPoint(0);
+        ListenableFuture<?> first = m_sink.asWriteTask(endPoint, records("first"));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        ListenableFuture<?> second = m_sink.asWriteTask(endPoint, records("second"));
+
+        m_evictionListener.evicted(endPoint);
+        assertEquals(1, m_sink.getEndPointQueueCount());
+
+        release.countDown();
+        Futures.allAsList(first, second).get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("first", "second"), m_written.get(endPoint));
+        assertEquals(0, m_overlaps.get());
+    }
+
+    @Test
+    public void testBlockWritesMayBeInterrupted() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        m_onWrite = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignoreIt) {
+                }
+            }
+        };
+        final RecordArena arena = new RecordArena();
+        arena.add(endPoint(0), "held".getBytes(StandardCharsets.UTF_8));
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    m_sink.write(arena);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        writer.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        writer.interrupt();
+        assertTrue("block write was not interrupted", interrupted.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        writer.join();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void testOversizedBlockIsGrantedToItsSoleHolder() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        MemoryBudget.Reservation reservation = budget.reservation();
+
+        assertTrue(reservation.reserve(60, 0));
+        assertTrue(reservation.reserve(60, 0));
+        assertTrue(reservation.reserve(500, 0));
+        assertEquals(620, budget.getUsed());
+        assertEquals(620, reservation.getHeld());
+        assertEquals(0, budget.getWaits());
+
+        reservation.release();
+        assertEquals(0, budget.getUsed());
+        assertEquals(0, reservation.getHeld());
+    }
+
+    @Test
+    public void testOversizedBlockWaitsForOtherHolders() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+        final MemoryBudget.Reservation other = budget.reservation();
+        final MemoryBudget.Reservation oversized = budget.reservation();
+
+        assertTrue(other.reserve(10, 0));
+        assertFalse(oversized.reserve(200, 0));
+
+        final CountDownLatch granted = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (oversized.reserve(200, 10_000)) granted.countDown();
+                } catch (InterruptedException ignoreIt) {
+                }
+            }
+        };
+        waiter.start();
+        other.release();
+        waiter.join(10_000);
+        assertEquals(0, granted.getCount());
+        assertEquals(200, budget.getUsed());
+    }
+
+    @Test
+    public void testHoldersWaitingOnEachOtherShed() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+        final MemoryBudget.Reservation first = budget.reservation();
+        final MemoryBudget.Reservation second = budget.reservation();
+
+        assertTrue(first.reserve(50, 0));
+        assertTrue(second.reserve(50, 0));
+
+        final AtomicBoolean firstReserved = new AtomicBoolean(false);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    firstReserved.set(first.reserve(50, 10_000));
+                } catch (InterruptedException ignoreIt) {
+                }
+            }
+        };
+        waiter.start();
+        while (budget.getWaits() == 0) {
+            Thread.sleep(1);
+        }
+
+        long start = System.nanoTime();
+        assertFalse(second.reserve(50, 10_000));
+        assertTrue("did not shed right away", System.nanoTime() - start < 5_000_000_000L);
+        second.release();
+
+        waiter.join(10_000);
+        assertTrue(firstReserved.get());
+        assertEquals(100, budget.getUsed());
+        assertEquals(1, budget.getSheds());
+    }
+}
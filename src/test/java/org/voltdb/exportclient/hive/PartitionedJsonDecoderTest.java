@@ -0,0 +1,192 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+import com.google_voltpatches.common.collect.ImmutableList;
+
+public class PartitionedJsonDecoderTest {
+
+    final static VoltType [] TYPES = new VoltType[] {
+        VoltType.TINYINT, VoltType.SMALLINT, VoltType.INTEGER, VoltType.BIGINT,
+        VoltType.FLOAT, VoltType.TIMESTAMP, VoltType.STRING, VoltType.VARBINARY,
+        VoltType.DECIMAL
+    };
+    final static int COLUMNS = 27;
+
+    final List<VoltType> m_columnTypes;
+    final List<String> m_columnNames;
+
+    public PartitionedJsonDecoderTest() {
+        ImmutableList.Builder<VoltType> types = ImmutableList.builder();
+        ImmutableList.Builder<String> names = ImmutableList.builder();
+        // the first column is the partition column
+        types.add(VoltType.STRING);
+        names.add("region");
+        for (int i = 1; i < COLUMNS; ++i) {
+            types.add(TYPES[i % TYPES.length]);
+            names.add("column" + i);
+        }
+        m_columnTypes = types.build();
+        m_columnNames = names.build();
+    }
+
+    Object [] randomRow(Random random) {
+        Object [] values = new Object[COLUMNS];
+        values[0] = random.nextInt(8) == 0 ? null : "region" + random.nextInt(3);
+        for (int i = 1; i < COLUMNS; ++i) {
+            if (random.nextInt(6) == 0) continue;
+            switch (m_columnTypes.get(i)) {
+            case TINYINT:
+                values[i] = (byte)(random.nextInt(255) - 127);
+                break;
+            case SMALLINT:
+                values[i] = (short)(random.nextInt(65535) - 32767);
+                break;
+            case INTEGER:
+                values[i] = random.nextInt();
+                break;
+            case BIGINT:
+                values[i] = random.nextLong();
+                break;
+            case FLOAT:
+                values[i] = random.nextDouble() * 1e6 - 5e5;
+                break;
+            case TIMESTAMP:
+                values[i] = new TimestampType(1_500_000_000_000_000L + random.nextInt() * 1000L);
+                break;
+            case STRING:
+                values[i] = "value \"" + random.nextInt() + "\", \\ " + (char)(0x100 + random.nextInt(0x100));
+                break;
+            case VARBINARY:
+                byte [] bytes = new byte[random.nextInt(8)];
+                random.nextBytes(bytes);
+                values[i] = bytes;
+                break;
+            case DECIMAL:
+                values[i] = new BigDecimal(random.nextLong()).movePointLeft(12);
+                break;
+            default:
+                throw new IllegalStateException("unexpected type " + m_columnTypes.get(i));
+            }
+        }
+        return values;
+    }
+
+    PartitionedJsonDecoder decoder(RecordFormat format, boolean utf8Encoding) {
+        HiveEndPointFactory factory = new HiveEndPointFactory("thrift://localhost:9083", "db", "table", format);
+        PartitionedJsonDecoder.Builder builder = PartitionedJsonDecoder.builder();
+        builder
+            .endPointFactory(factory)
+            .partitionColumnNames(ImmutableList.of("region"))
+            .timeZone(TimeZone.getTimeZone("UTC"))
+            .camelCaseFieldNames(false)
+            .utf8Encoding(utf8Encoding)
+            .tableColumnNames(format == RecordFormat.JSON ? null : m_columnNames.subList(1, COLUMNS))
+            .columnNames(m_columnNames)
+            .columnTypes(m_columnTypes)
+            .skipInternalFields(false)
+            ;
+        return builder.build();
+    }
+
+    static List<String> recordsOf(RecordArena arena) {
+        List<String> records = new ArrayList<>();
+        for (RecordArena.Records endPointRecords: arena) {
+            for (byte [] record: endPointRecords) {
+                records.add(endPointRecords.getEndPoint().partitionVals + " "
+                        + new String(record, StandardCharsets.UTF_8));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Rows read in place from their serialized form must yield the same
+     * records as rows decoded into field values
+     */
+    void assertSameRecords(RecordFormat format, boolean utf8Encoding) throws Exception {
+        PartitionedJsonDecoder decoder = decoder(format, utf8Encoding);
+        ExportRowReader reader = new ExportRowReader(m_columnTypes);
+        Random random = new Random(4242);
+        for (int r = 0; r < 200; ++r) {
+            Object [] values = randomRow(random);
+            byte [] row = ExportRowReaderTest.serialize(m_columnTypes, values);
+            reader.wrap(row);
+
+            List<String> expected = recordsOf(decoder.decode(new RecordArena(), values));
+            assertEquals(1, expected.size());
+            assertEquals(expected, recordsOf(decoder.decode(new RecordArena(), reader)));
+        }
+    }
+
+    @Test
+    public void testUtf8JsonRecordsMatchAcrossDecodingPaths() throws Exception {
+        assertSameRecords(RecordFormat.JSON, true);
+    }
+
+    @Test
+    public void testJsonRecordsMatchAcrossDecodingPaths() throws Exception {
+        assertSameRecords(RecordFormat.JSON, false);
+    }
+
+    @Test
+    public void testDelimitedRecordsMatchAcrossDecodingPaths() throws Exception {
+        assertSameRecords(RecordFormat.DELIMITED, true);
+    }
+
+    @Test
+    public void testEncodesEveryColumn() throws Exception {
+        PartitionedJsonDecoder decoder = decoder(RecordFormat.DELIMITED, true);
+        Object [] values = new Object[COLUMNS];
+        values[0] = "east";
+        for (int i = 1; i < COLUMNS; ++i) {
+            values[i] = m_columnTypes.get(i) == VoltType.STRING ? "s" + i : null;
+        }
+        byte [] row = ExportRowReaderTest.serialize(m_columnTypes, values);
+        List<String> records = recordsOf(decoder.decode(new RecordArena(), new ExportRowReader(m_columnTypes).wrap(row)));
+        assertEquals(1, records.size());
+        String [] fields = records.get(0).substring("[east] ".length()).split(
+                String.valueOf(DelimitedEncoding.SEPARATOR), -1);
+        assertEquals(COLUMNS - 1, fields.length);
+        for (int i = 1; i < COLUMNS; ++i) {
+            if (m_columnTypes.get(i) == VoltType.STRING) {
+                assertEquals("s" + i, fields[i - 1]);
+            }
+        }
+    }
+}
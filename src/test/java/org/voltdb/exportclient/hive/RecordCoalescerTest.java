@@ -0,0 +1,187 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hive.hcatalog.streaming.HiveEndPoint;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google_voltpatches.common.util.concurrent.Futures;
+import com.google_voltpatches.common.util.concurrent.ListenableFuture;
+
+public class RecordCoalescerTest {
+
+    final static long LONG_DELAY_MS = TimeUnit.MINUTES.toMillis(10);
+
+    HiveSink m_sink;
+    HiveEndPoint m_endPoint;
+    /** the records of each coalesced write, in submission order */
+    final List<List<String>> m_writes = Collections.synchronizedList(new ArrayList<List<String>>());
+
+    @Before
+    public void setUp() {
+        m_endPoint = new HiveEndPointFactory("thrift://localhost:9083", "db", "table")
+                .endPointFor(Arrays.asList("p"));
+        m_sink = mock(HiveSink.class);
+        when(m_sink.asWriteTask(any(HiveEndPoint.class), ArgumentMatchers.<Collection<byte[]>>any()))
+            .thenAnswer(new Answer<ListenableFuture<?>>() {
+                @Override
+                public ListenableFuture<?> answer(InvocationOnMock invocation) throws Throwable {
+                    Collection<byte[]> records = invocation.getArgument(1);
+                    List<String> write = new ArrayList<>(records.size());
+                    for (byte [] record: records) {
+                        write.add(new String(record, StandardCharsets.UTF_8));
+                    }
+                    m_writes.add(write);
+                    return Futures.immediateFuture(null);
+                }
+            });
+    }
+
+    static List<byte[]> records(String... values) {
+        List<byte[]> records = new ArrayList<>(values.length);
+        for (String value: values) {
+            records.add(value.getBytes(StandardCharsets.UTF_8));
+        }
+        return records;
+    }
+
+    @Test
+    public void testFlushesOnceEnoughRows() throws Exception {
+        RecordCoalescer coalescer = new RecordCoalescer(m_sink, LONG_DELAY_MS, 3, Long.MAX_VALUE);
+        ListenableFuture<?> first = coalescer.add(m_endPoint, records("a", "b"));
+        assertFalse(first.isDone());
+        assertTrue(m_writes.isEmpty());
+
+        ListenableFuture<?> second = coalescer.add(m_endPoint, records("c"));
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(Arrays.asList("a", "b", "c")), m_writes);
+
+        // the next records start a new write
+        assertFalse(coalescer.add(m_endPoint, records("d")).isDone());
+        assertEquals(1, m_writes.size());
+    }
+
+    @Test
+    public void testFlushesOnceEnoughBytes() throws Exception {
+        RecordCoalescer coalescer = new RecordCoalescer(m_sink, LONG_DELAY_MS, Integer.MAX_VALUE, 10);
+        ListenableFuture<?> first = coalescer.add(m_endPoint, records("12345", "123"));
+        assertFalse(first.isDone());
+
+        ListenableFuture<?> second = coalescer.add(m_endPoint, records("12"));
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(Arrays.asList("12345", "123", "12")), m_writes);
+    }
+
+    @Test
+    public void testFlushesOnceTheOldestRecordsWaitedLongEnough() throws Exception {
+        RecordCoalescer coalescer = new RecordCoalescer(m_sink, 200, Integer.MAX_VALUE, Long.MAX_VALUE);
+        long start = System.nanoTime();
+        ListenableFuture<?> first = coalescer.add(m_endPoint, records("a"));
+        ListenableFuture<?> second = coalescer.add(m_endPoint, records("b"));
+
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+        assertEquals(Arrays.asList(Arrays.asList("a", "b")), m_writes);
+    }
+
+    @Test
+    public void testConcurrentContributionsAreWrittenOnceAndInOrder() throws Exception {
+        final RecordCoalescer coalescer = new RecordCoalescer(m_sink, LONG_DELAY_MS, 7, Long.MAX_VALUE);
+        final int threads = 4;
+        final int adds = 5000;
+        final CountDownLatch go = new CountDownLatch(1);
+        final List<ListenableFuture<?>> committed = Collections.synchronizedList(new ArrayList<ListenableFuture<?>>());
+        List<Thread> adders = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            final int thread = t;
+            Thread adder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < adds; ++i) {
+                        committed.add(coalescer.add(m_endPoint, records(thread + ":" + i)));
+                    }
+                }
+            });
+            adder.start();
+            adders.add(adder);
+        }
+        go.countDown();
+        for (Thread adder: adders) {
+            adder.join();
+        }
+        /*
+         * writes are flushed once they reach 7 records, and may take a few more
+         * added concurrently. The last ones wait for the delay
+         */
+        List<String> written = new ArrayList<>();
+        synchronized (m_writes) {
+            for (List<String> write: m_writes) {
+                assertTrue(write.size() >= 7);
+                written.addAll(write);
+            }
+        }
+        assertTrue(written.size() > threads * adds - 7);
+
+        int [] next = new int[threads];
+        for (String record: written) {
+            String [] parts = record.split(":");
+            int thread = Integer.parseInt(parts[0]);
+            assertEquals("records of thread " + thread + " were reordered", next[thread]++, Integer.parseInt(parts[1]));
+        }
+        int done = 0;
+        for (ListenableFuture<?> future: committed) {
+            if (future.isDone()) ++done;
+        }
+        assertEquals(written.size(), done);
+    }
+}
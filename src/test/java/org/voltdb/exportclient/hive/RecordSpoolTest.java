@@ -0,0 +1,190 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hive.hcatalog.streaming.HiveEndPoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google_voltpatches.common.util.concurrent.Futures;
+
+public class RecordSpoolTest {
+
+    final static int SEGMENT_SIZE = 4096;
+
+    File m_directory;
+    HiveEndPoint m_endPoint;
+    HiveSink m_sink;
+    RecordSpool m_spool;
+
+    final AtomicBoolean m_accepting = new AtomicBoolean(false);
+    final Set<String> m_replayed = new TreeSet<>();
+    final Set<String> m_appended = new TreeSet<>();
+
+    @Before
+    public void setUp() throws Exception {
+        m_directory = Files.createTempDirectory("spool").toFile();
+        m_endPoint = new HiveEndPointFactory("thrift://localhost:9083", "db", "table")
+                .endPointFor(Arrays.asList("p"));
+        m_sink = mock(HiveSink.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                if (!m_accepting.get()) {
+                    return Futures.immediateFailedFuture(new HiveExportException("not accepting"));
+                }
+                Collection<byte[]> records = invocation.getArgument(1);
+                synchronized (m_replayed) {
+                    for (byte [] record: records) {
+                        m_replayed.add(new String(record, StandardCharsets.UTF_8).trim());
+                    }
+                }
+                return Futures.immediateFuture(null);
+            }
+        }).when(m_sink).enqueue(any(HiveEndPoint.class), ArgumentMatchers.<Collection<byte[]>>any());
+        m_spool = new RecordSpool(m_directory, 3 * SEGMENT_SIZE, SEGMENT_SIZE,
+                new HiveEndPointFactory("thrift://localhost:9083", "db", "table"), m_sink);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        m_spool.shutdown();
+        File [] files = m_directory.listFiles();
+        if (files != null) for (File file: files) {
+            file.delete();
+        }
+        m_directory.delete();
+    }
+
+    boolean append(String name, int size) {
+        byte [] record = new byte[size];
+        Arrays.fill(record, (byte)' ');
+        byte [] bytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, record, 0, bytes.length);
+        RecordArena arena = new RecordArena();
+        arena.add(m_endPoint, record);
+        try {
+            m_spool.append(arena);
+        } catch (HiveExportException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("is full"));
+            return false;
+        }
+        m_appended.add(name);
+        return true;
+    }
+
+    void awaitReplayOfAppended() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (m_replayed) {
+                if (m_replayed.containsAll(m_appended)) return;
+            }
+            Thread.sleep(10);
+        }
+        synchronized (m_replayed) {
+            fail("appended " + m_appended + " but only replayed " + m_replayed);
+        }
+    }
+
+    @Test
+    public void testNothingIsLostAfterTheSpoolIsFull() throws Exception {
+        int appended = 0;
+        while (append("large-" + appended, 1300)) {
+            ++appended;
+        }
+        assertTrue("spool did not fill up", appended > 0);
+        assertEquals(3, m_spool.getSegmentCount());
+
+        // the head has room left for small entries, even though the spool is full
+        assertTrue(append("small-0", 16));
+
+        m_accepting.set(true);
+        awaitReplayOfAppended();
+
+        // sealed segments are retired once drained, but not the head that takes further appends
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (m_spool.getSegmentCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, m_spool.getSegmentCount());
+
+        assertTrue(append("small-1", 16));
+        assertTrue(append("small-2", 16));
+        awaitReplayOfAppended();
+
+        for (int i = 0; i < 8; ++i) {
+            assertTrue(append("after-" + i, 1300));
+        }
+        awaitReplayOfAppended();
+
+        // replayed entries are only deducted from the depth once their writes complete
+        deadline = System.currentTimeMillis() + 10_000;
+        while (m_spool.getDepthEntries() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, m_spool.getDepthEntries());
+    }
+
+    @Test
+    public void testDirectoryIsLockedWhileOpen() throws Exception {
+        HiveEndPointFactory factory = new HiveEndPointFactory("thrift://localhost:9083", "db", "table");
+        try {
+            new RecordSpool(m_directory, 3 * SEGMENT_SIZE, SEGMENT_SIZE, factory, m_sink);
+            fail("opened a spool on a directory locked by another one");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("in use"));
+        }
+
+        assertTrue(append("before", 16));
+        m_spool.shutdown();
+
+        // the undrained entry is recovered by the spool that next opens the directory
+        m_spool = new RecordSpool(m_directory, 3 * SEGMENT_SIZE, SEGMENT_SIZE, factory, m_sink);
+        assertEquals(1, m_spool.getDepthEntries());
+        m_accepting.set(true);
+        awaitReplayOfAppended();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.voltdb.exportclient.hive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+import org.voltdb.VoltType;
+
+import com.google_voltpatches.common.collect.ImmutableList;
+
+public class RowFilterTest {
+
+    final static TimeZone UTC = TimeZone.getTimeZone("UTC");
+    final static List<String> NAMES = ImmutableList.of("ID", "NAME");
+    final static List<VoltType> TYPES = ImmutableList.of(VoltType.BIGINT, VoltType.STRING);
+
+    static String codePoints(int... codePoints) {
+        return new String(codePoints, 0, codePoints.length);
+    }
+
+    static long micros(String instant) {
+        return Instant.parse(instant).toEpochMilli() * 1000L;
+    }
+
+    @Test
+    public void testParseComparisons() {
+        RowFilter.Clause clause = RowFilter.Clause.parse(" ID >= 42 ");
+        assertEquals("ID", clause.m_column);
+        assertEquals(RowFilter.Operator.GE, clause.m_operator);
+        assertEquals("42", clause.m_value);
+
+        clause = RowFilter.Clause.parse("NAME<>'a b'");
+        assertEquals("NAME", clause.m_column);
+        assertEquals(RowFilter.Operator.NE, clause.m_operator);
+        assertEquals("a b", clause.m_value);
+
+        assertEquals(RowFilter.Operator.NE, RowFilter.Clause.parse("ID != 1").m_operator);
+        assertEquals(RowFilter.Operator.EQ, RowFilter.Clause.parse("ID = 1").m_operator);
+        assertEquals(RowFilter.Operator.LT, RowFilter.Clause.parse("ID < 1").m_operator);
+        assertEquals(RowFilter.Operator.LE, RowFilter.Clause.parse("ID <= 1").m_operator);
+        assertEquals(RowFilter.Operator.GT, RowFilter.Clause.parse("ID > 1").m_operator);
+
+        // only enclosing quotes are stripped
+        assertEquals("it's", RowFilter.Clause.parse("NAME = 'it's'").m_value);
+        assertEquals("'", RowFilter.Clause.parse("NAME = '").m_value);
+        assertEquals("", RowFilter.Clause.parse("NAME = ''").m_value);
+    }
+
+    @Test
+    public void testParseNullChecks() {
+        RowFilter.Clause clause = RowFilter.Clause.parse("NAME is null");
+        assertEquals("NAME", clause.m_column);
+        assertEquals(RowFilter.Operator.IS_NULL, clause.m_operator);
+        assertNull(clause.m_value);
+        assertEquals(RowFilter.Operator.IS_NOT_NULL, RowFilter.Clause.parse("NAME IS  NOT NULL").m_operator);
+    }
+
+    @Test
+    public void testParseMalformedClauses() {
+        for (String malformed: new String[] {"", "ID", "= 1", "ID ~ 1", "ID is nul", "ID is not", "I-D = 1"}) {
+            try {
+                RowFilter.Clause.parse(malformed);
+                fail("parsed malformed clause \"" + malformed + "\"");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testParseTimestamps() throws Exception {
+        assertEquals(-5L, RowFilter.parseTimestamp("-5", UTC));
+        assertEquals(1530403200000000L, RowFilter.parseTimestamp("1530403200000000", UTC));
+        assertEquals(micros("2018-07-01T00:00:00Z"), RowFilter.parseTimestamp("2018-07-01", UTC));
+        assertEquals(micros("2018-07-01T12:34:56Z"), RowFilter.parseTimestamp("2018-07-01 12:34:56", UTC));
+        assertEquals(micros("2018-07-01T12:34:56Z") + 500_000L,
+                RowFilter.parseTimestamp("2018-07-01 12:34:56.5", UTC));
+        assertEquals(micros("2018-07-01T12:34:56Z") + 123_456L,
+                RowFilter.parseTimestamp("2018-07-01 12:34:56.123456", UTC));
+        assertEquals(micros("2018-07-01T04:00:00Z"),
+                RowFilter.parseTimestamp("2018-07-01 00:00:00", TimeZone.getTimeZone("America/New_York")));
+
+        for (String malformed: new String[] {
+                "2018-07-01 12:34:56.1234567", "2018-07-01 12:34:56.", "2018-07-01 12:34:56.1a",
+                "2018-13-01", "2018-07-01 25:00:00", "yesterday", "1.5"}) {
+            try {
+                RowFilter.parseTimestamp(malformed, UTC);
+                fail("parsed malformed timestamp \"" + malformed + "\"");
+            } catch (ParseException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testMalformedValuesAreRejectedOnCompile() {
+        try {
+            RowFilter.compile(ImmutableList.of(RowFilter.Clause.parse("ID = abc")), NAMES, TYPES, UTC);
+            fail("compiled a non numeric value for a BIGINT column");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            RowFilter.compile(ImmutableList.of(RowFilter.Clause.parse("OTHER = 1")), NAMES, TYPES, UTC);
+            fail("compiled a clause on an unknown column");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    boolean accept(RowFilter filter, Object [] values) throws Exception {
+        boolean decoded = filter.accept(values);
+        ExportRowReader reader = new ExportRowReader(TYPES).wrap(ExportRowReaderTest.serialize(TYPES, values));
+        assertEquals("decoded and in place filtering differ on " + values[1], decoded, filter.accept(reader));
+        return decoded;
+    }
+
+    @Test
+    public void testStringsAreComparedInPlaceByCodePoint() throws Exception {
+        String [] values = {
+                "", "a", "ab", "b", "B",
+                codePoints(0xe9), codePoints(0x61, 0xe9), codePoints(0xfffd), codePoints(0x1f600),
+                codePoints(0x1f600, 0x61)
+        };
+        for (RowFilter.Operator operator: new RowFilter.Operator[] {
+                RowFilter.Operator.EQ, RowFilter.Operator.NE, RowFilter.Operator.LT,
+                RowFilter.Operator.LE, RowFilter.Operator.GT, RowFilter.Operator.GE}) {
+            for (String value: values) {
+                RowFilter filter = RowFilter.compile(
+                        ImmutableList.of(new RowFilter.Clause("NAME", operator, value)), NAMES, TYPES, UTC);
+                for (String name: values) {
+                    accept(filter, new Object[] {1L, name});
+                }
+            }
+        }
+
+        RowFilter filter = RowFilter.compile(
+                ImmutableList.of(RowFilter.Clause.parse("NAME > 'a'")), NAMES, TYPES, UTC);
+        assertTrue(accept(filter, new Object[] {1L, "ab"}));
+        assertTrue(accept(filter, new Object[] {1L, "b"}));
+        assertFalse(accept(filter, new Object[] {1L, "a"}));
+        assertFalse(accept(filter, new Object[] {1L, "B"}));
+        assertFalse(accept(filter, new Object[] {1L, ""}));
+
+        // a supplementary character sorts after the BMP, unlike its UTF-16 surrogates do
+        filter = RowFilter.compile(ImmutableList.of(
+                new RowFilter.Clause("NAME", RowFilter.Operator.GT, codePoints(0xfffd))), NAMES, TYPES, UTC);
+        assertTrue(accept(filter, new Object[] {1L, codePoints(0x1f600)}));
+        assertFalse(accept(filter, new Object[] {1L, codePoints(0xe9)}));
+    }
+
+    @Test
+    public void testComparisonsWithNullsNeverHold() throws Exception {
+        for (String clause: new String[] {"NAME = 'a'", "NAME != 'a'", "NAME < 'a'", "NAME >= 'a'"}) {
+            RowFilter filter = RowFilter.compile(ImmutableList.of(RowFilter.Clause.parse(clause)), NAMES, TYPES, UTC);
+            assertFalse(clause, accept(filter, new Object[] {1L, null}));
+        }
+        RowFilter isNull = RowFilter.compile(
+                ImmutableList.of(RowFilter.Clause.parse("NAME is null")), NAMES, TYPES, UTC);
+        assertTrue(accept(isNull, new Object[] {1L, null}));
+        assertFalse(accept(isNull, new Object[] {1L, "a"}));
+    }
+
+    @Test
+    public void testClausesAreConjoined() throws Exception {
+        RowFilter filter = RowFilter.compile(ImmutableList.of(
+                RowFilter.Clause.parse("ID > 10"), RowFilter.Clause.parse("NAME = 'x'")), NAMES, TYPES, UTC);
+        assertTrue(accept(filter, new Object[] {11L, "x"}));
+        assertFalse(accept(filter, new Object[] {10L, "x"}));
+        assertFalse(accept(filter, new Object[] {11L, "y"}));
+    }
+}